@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import pamdog.DogControl;
+
+/**
+ * Scratch home folder for the benchmarks, so they don't touch the real settings
+ * or logs. The first call points user.home at it, so it has to come before anything
+ * which uses the watchdog's settings or log folders, i.e. first thing in a setup.
+ */
+public class BenchHome {
+
+	private static Path home;
+
+	private static DogControl dogControl;
+
+	/**
+	 * @return scratch home folder, made the first time this is called
+	 * @throws IOException
+	 */
+	public static synchronized Path get() throws IOException {
+		if (home == null) {
+			home = Files.createTempDirectory("pamdogbench");
+			System.setProperty("user.home", home.toString());
+		}
+		return home;
+	}
+
+	/**
+	 * @return a DogControl with a minimal no GUI configuration in the scratch folder
+	 * @throws IOException
+	 */
+	public static synchronized DogControl getDogControl() throws IOException {
+		if (dogControl != null) {
+			return dogControl;
+		}
+		Path home = get();
+		File config = home.resolve("benchconfig.txt").toFile();
+		try (PrintWriter pw = new PrintWriter(config)) {
+			pw.println("psfPath=" + home.resolve("bench.psfx"));
+			pw.println("libFolder=" + home);
+			pw.println("udpPort=8000");
+			pw.println("options=-nogui");
+			pw.println("MsMem=512");
+			pw.println("MxMem=1024");
+		}
+		dogControl = new DogControl(false, config.getAbsolutePath());
+		return dogControl;
+	}
+
+}
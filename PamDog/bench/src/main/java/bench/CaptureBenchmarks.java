@@ -0,0 +1,98 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Logging.DogLog;
+import pamdog.CaptureMode;
+import pamdog.IdleFunction;
+import pamdog.OutputCapture;
+
+/**
+ * Time per line from a child process's stdout through LogCaptureThread into the
+ * PAMGuard log, or through OutputPump straight to file. The child is started
+ * before each invocation and waits to be told to go, so JVM start up isn't timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class CaptureBenchmarks {
+
+	private static final int LINES = 100000;
+
+	@Param({"LINES", "PUMP"})
+	private CaptureMode mode;
+
+	private IdleFunction idleFunction;
+
+	private OutputCapture capture;
+
+	private File pumpFile;
+
+	private String java;
+
+	private String classPath;
+
+	private Process process;
+
+	@Setup
+	public void setup() throws IOException {
+		pumpFile = BenchHome.get().resolve("benchpump.txt").toFile();
+		idleFunction = new IdleFunction(BenchHome.getDogControl());
+		capture = new OutputCapture(idleFunction, new DogLog(null, "BenchCapture", false));
+		java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+		classPath = System.getProperty("java.class.path");
+	}
+
+	@Setup(Level.Invocation)
+	public void startPrinter() throws IOException {
+		process = new ProcessBuilder(java, "-cp", classPath, LinePrinter.class.getName(),
+				Integer.toString(LINES), "100").start();
+		capture.startCapture(process, mode, pumpFile, List.of());
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (mode == CaptureMode.LINES) {
+			System.out.println("\nlines spilled " + capture.getSpilledLines() + ", dropped " +
+					capture.getDroppedLines());
+		}
+		pumpFile.delete();
+		idleFunction.destroy();
+		capture.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public int capture() throws IOException, InterruptedException {
+		process.getOutputStream().write('\n');
+		process.getOutputStream().close();
+		int exit = process.waitFor();
+		while (capture.getActiveReaderCount() > 0) {
+			Thread.sleep(1);
+		}
+		return exit;
+	}
+
+}
@@ -0,0 +1,34 @@
+package bench;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Child process for the output capture benchmark. Waits for a byte on stdin, so
+ * that JVM start up isn't part of the timing, then writes a number of lines of a
+ * given length to stdout as fast as it can and exits.
+ */
+public class LinePrinter {
+
+	/**
+	 * @param args number of lines, line length
+	 */
+	public static void main(String[] args) throws IOException {
+		int nLines = Integer.parseInt(args[0]);
+		int length = Integer.parseInt(args[1]);
+		byte[] line = new byte[Math.max(1, length) + 1];
+		Arrays.fill(line, (byte) 'x');
+		line[line.length-1] = '\n';
+		System.in.read();
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536)) {
+			for (int i = 0; i < nLines; i++) {
+				out.write(line);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pamdog.LineSplitter;
+
+/**
+ * Splitting a 64k block of 100 byte lines, with BufferedReader.readLine as the
+ * old capture did it and with the LineSplitter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class LineSplitterBenchmarks {
+
+	private byte[] block;
+
+	private Blackhole blackhole;
+
+	private LineSplitter splitter;
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		block = new byte[65536];
+		Arrays.fill(block, (byte) 'x');
+		for (int i = 100; i < block.length; i += 101) {
+			block[i] = '\n';
+		}
+		this.blackhole = blackhole;
+		splitter = new LineSplitter(line -> this.blackhole.consume(line), Charset.defaultCharset(),
+				LineSplitter.DEFAULTMAXLINE);
+	}
+
+	@Benchmark
+	public void bufferedReaderReadLine(Blackhole blackhole) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(block)));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			blackhole.consume(line);
+		}
+	}
+
+	@Benchmark
+	public void lineSplitterFeed() {
+		splitter.feed(block, 0, block.length);
+	}
+
+}
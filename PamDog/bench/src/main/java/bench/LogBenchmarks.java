@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Logging.DogLog;
+
+/**
+ * DogLog.logItem with and without file logging. With a file, logItem only hands the
+ * item to the writer thread, so the number of items the writer couldn't keep up
+ * with is printed at the end.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LogBenchmarks {
+
+	private static final String LOGTEXT = "Status Error: Receive timed out, late replies so far 0";
+
+	@State(Scope.Benchmark)
+	public static class Logs {
+
+		private DogLog noFile;
+
+		private DogLog withFile;
+
+		@Setup
+		public void setup() throws IOException {
+			BenchHome.get();
+			noFile = new DogLog(null, "BenchNoFile", false);
+			withFile = new DogLog(null, "BenchFile", true);
+		}
+
+		@TearDown
+		public void tearDown() {
+			withFile.closeFile();
+			System.out.println("\nitems dropped by the writer " + withFile.getDroppedCount());
+		}
+	}
+
+	@Benchmark
+	public boolean logItemNoFile(Logs logs) {
+		return logs.noFile.logItem(LOGTEXT);
+	}
+
+	@Benchmark
+	public boolean logItemFile(Logs logs) {
+		return logs.withFile.logItem(LOGTEXT);
+	}
+
+	@Benchmark
+	public void logItemFormattedNoFile(Logs logs) {
+		logs.noFile.logItem("PAMGuard not replying, suspicion level phi = %3.1f", 2.5);
+	}
+
+}
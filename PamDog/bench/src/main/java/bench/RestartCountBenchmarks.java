@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pamdog.DogParams;
+import pamdog.EventCounters;
+import pamdog.RestartInfo;
+import pamdog.RestartInfo.RestartType;
+
+/**
+ * DogParams.getRestartCount against the EventCounters which replaced it for
+ * the restart decisions, with restarts spread over the last hour. DogParams only
+ * keeps the most recent few of each type, however many there have been.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class RestartCountBenchmarks {
+
+	@Param({"10", "1000"})
+	private int restarts;
+
+	private DogParams params;
+
+	private EventCounters counters;
+
+	@Setup
+	public void setup() {
+		params = new DogParams();
+		counters = new EventCounters();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < restarts; i++) {
+			RestartInfo restart = new RestartInfo(RestartType.values()[i % 3], now - (long) i * 3600000L / restarts, "bench");
+			params.addRestart(restart);
+			counters.add(restart);
+		}
+	}
+
+	@Benchmark
+	public int dogParamsGetRestartCount() {
+		return params.getRestartCount(RestartType.RESTARTPAMGUARD, System.currentTimeMillis() - 600000);
+	}
+
+	@Benchmark
+	public int eventCountersCount() {
+		return counters.count(RestartType.RESTARTPAMGUARD, 600000);
+	}
+
+}
@@ -0,0 +1,149 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pamdog.DogUDP;
+import pamdog.UdpCommands;
+import pamdog.UnixSocketTransport;
+
+/**
+ * Command round trips to a loopback echo standing in for PAMGuard, over UDP
+ * and over a Unix domain socket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TransportBenchmarks {
+
+	/**
+	 * DogUDP talking to a thread which sends every datagram straight back.
+	 */
+	@State(Scope.Benchmark)
+	public static class UdpEcho {
+
+		private DatagramChannel echo;
+
+		private DogUDP dogUDP;
+
+		@Setup
+		public void setup() throws IOException {
+			echo = DatagramChannel.open();
+			echo.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread echoThread = new Thread(() -> {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+				try {
+					while (true) {
+						buffer.clear();
+						SocketAddress from = echo.receive(buffer);
+						buffer.flip();
+						echo.send(buffer, from);
+					}
+				} catch (IOException e) {
+				}
+			}, "UDP echo");
+			echoThread.setDaemon(true);
+			echoThread.start();
+			dogUDP = new DogUDP(BenchHome.getDogControl(), null);
+			dogUDP.setCurrentUdpPort(((InetSocketAddress) echo.getLocalAddress()).getPort());
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			System.out.println("\nlate replies " + dogUDP.getLateReplyCount() + ", " + dogUDP.getRttEstimator());
+			dogUDP.close();
+			echo.close();
+		}
+	}
+
+	/**
+	 * UnixSocketTransport talking to a thread which sends every line straight back.
+	 */
+	@State(Scope.Benchmark)
+	public static class UnixEcho {
+
+		private Path socketPath;
+
+		private ServerSocketChannel server;
+
+		private UnixSocketTransport transport;
+
+		@Setup
+		public void setup() throws IOException {
+			socketPath = BenchHome.get().resolve("bench.sock");
+			Files.deleteIfExists(socketPath);
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(socketPath));
+			Thread echoThread = new Thread(() -> {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+				try (SocketChannel ch = server.accept()) {
+					while (ch.read(buffer) >= 0) {
+						buffer.flip();
+						ch.write(buffer);
+						buffer.compact();
+					}
+				} catch (IOException e) {
+				}
+			}, "Unix socket echo");
+			echoThread.setDaemon(true);
+			echoThread.start();
+			transport = new UnixSocketTransport(socketPath);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			transport.close();
+			server.close();
+			Files.deleteIfExists(socketPath);
+		}
+	}
+
+	@Benchmark
+	public String udpSendCommand(UdpEcho udp) {
+		return udp.dogUDP.sendCommand(UdpCommands.PING, 1000);
+	}
+
+	/**
+	 * Four commands in flight at once, as when a probe overlaps a ping.
+	 */
+	@Benchmark
+	public int udpSendCommandAsyncFourInFlight(UdpEcho udp) {
+		CompletableFuture<String> a = udp.dogUDP.sendCommandAsync(UdpCommands.STATUS, 1000);
+		CompletableFuture<String> b = udp.dogUDP.sendCommandAsync(UdpCommands.SUMMARY, 1000);
+		CompletableFuture<String> c = udp.dogUDP.sendCommandAsync(UdpCommands.PING, 1000);
+		CompletableFuture<String> d = udp.dogUDP.sendCommandAsync(UdpCommands.PING, 1000);
+		return a.join().length() + b.join().length() + c.join().length() + d.join().length();
+	}
+
+	@Benchmark
+	public String unixSocketSendCommand(UnixEcho unix) {
+		return unix.transport.sendCommand(UdpCommands.PING, 1000);
+	}
+
+}
@@ -0,0 +1,317 @@
+package simulator;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import pamdog.HeartbeatPage;
+import pamdog.UdpCommands;
+
+/**
+ * Stand in for PAMGuard which answers the same UDP commands (ping, Status, summary,
+ * start, stop and Exit) and can be made to misbehave in repeatable ways, so that the
+ * watchdog can be tested without a PAMGuard install. See SimulatorScript for the
+ * faults it can simulate. <p>
+ * It takes the same command line arguments as PAMGuard, ignoring those it doesn't
+ * use, so the watchdog can launch it in place of PAMGuard by setting the other VM
+ * options to <br>
+ * -cp &lt;PamDog classes&gt;&lt;path separator&gt;&lt;simulator classes&gt; simulator.PamguardSimulator<br>
+ * which puts the main class in front of the -jar argument. Add -simscript &lt;file&gt;
+ * to the other PAMGuard options to give it a script. <p>
+ * Everything it does is written to stdout as a line starting "SIM" with the time in
+ * milliseconds, so it ends up in the PAMGuard log alongside what the watchdog did about it. <p>
+ * It's in it's own source folder with it's own output, e.g. bin-simulator in Eclipse, so
+ * that it isn't shipped with the watchdog.
+ */
+public class PamguardSimulator {
+
+	private static final int MAXCOMMAND = 1024;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private SimulatorScript script;
+
+	private int port;
+
+	private Path heartbeatFile;
+
+	private DatagramChannel channel;
+
+	private ScheduledExecutorService scheduler;
+
+	private Random random;
+
+	private volatile int status = UdpCommands.PAM_INITIALISING;
+
+	private volatile boolean hung;
+
+	private long startTime = System.currentTimeMillis();
+
+	private long commandCount;
+
+	private ScheduledFuture<?>[] runFaults = new ScheduledFuture<?>[3];
+
+	public PamguardSimulator(SimulatorScript script, int port, Path heartbeatFile) {
+		this.script = script;
+		this.port = port;
+		this.heartbeatFile = heartbeatFile;
+		random = new Random(script.getSeed());
+	}
+
+	public static void main(String[] args) {
+		int port = 0;
+		Path scriptFile = null;
+		Path heartbeatFile = null;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-simscript")) {
+				scriptFile = Path.of(args[++i]);
+			}
+			else if (args[i].equals("-heartbeat")) {
+				heartbeatFile = Path.of(args[++i]);
+			}
+		}
+		if (port == 0) {
+			System.out.println("PAMGuard simulator needs a UDP port: -port <port>");
+			System.exit(2);
+		}
+		try {
+			SimulatorScript script = new SimulatorScript(scriptFile);
+			new PamguardSimulator(script, port, heartbeatFile).run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Bind the port and answer commands until told to exit.
+	 * @throws IOException if the port can't be bound
+	 */
+	public void run() throws IOException {
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		scheduler = Executors.newScheduledThreadPool(1, r -> {
+			Thread t = new Thread(r, "Simulator scheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		log("started on port %d: %s", port, script);
+		scheduler.schedule(() -> {
+			if (status == UdpCommands.PAM_INITIALISING) {
+				status = UdpCommands.PAM_IDLE;
+				log("initialised");
+			}
+		}, script.getInitMillis(), TimeUnit.MILLISECONDS);
+		if (heartbeatFile != null) {
+			startHeartbeat();
+		}
+		if (script.getFloodLinesPerSecond() > 0) {
+			startFlood();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(MAXCOMMAND);
+		while (true) {
+			buffer.clear();
+			SocketAddress from = channel.receive(buffer);
+			buffer.flip();
+			String command = StandardCharsets.UTF_8.decode(buffer).toString().trim();
+			commandCount++;
+			if (hung) {
+				continue;
+			}
+			if (random.nextDouble() * 100 < script.getLossPercent()) {
+				log("dropped %s", command);
+				continue;
+			}
+			String reply = handleCommand(command);
+			if (reply == null) {
+				continue;
+			}
+			long delay = script.getLatencyMillis();
+			if (script.getJitterMillis() > 0) {
+				delay += (long) (random.nextDouble() * script.getJitterMillis());
+			}
+			if (delay > 0) {
+				scheduler.schedule(() -> sendReply(reply, from), delay, TimeUnit.MILLISECONDS);
+			}
+			else {
+				sendReply(reply, from);
+			}
+		}
+	}
+
+	/**
+	 * Act on a command
+	 * @param command command string
+	 * @return reply, or null for no reply
+	 */
+	private String handleCommand(String command) {
+		switch (command) {
+		case UdpCommands.PING:
+			return UdpCommands.PING;
+		case UdpCommands.STATUS:
+			return "status " + status;
+		case UdpCommands.SUMMARY:
+			return String.format("summary commands %d uptime %d", commandCount, System.currentTimeMillis() - startTime);
+		case UdpCommands.START:
+			if (status == UdpCommands.PAM_IDLE) {
+				if (script.isCrashOnStart()) {
+					crash("crash on start");
+				}
+				status = UdpCommands.PAM_RUNNING;
+				log("running");
+				scheduleRunFaults();
+			}
+			return UdpCommands.START;
+		case UdpCommands.STOP:
+			if (status == UdpCommands.PAM_RUNNING || status == UdpCommands.PAM_STALLED) {
+				status = UdpCommands.PAM_IDLE;
+				cancelRunFaults();
+				log("stopped");
+			}
+			return UdpCommands.STOP;
+		case UdpCommands.EXIT:
+			log("exit");
+			scheduler.schedule(() -> System.exit(0), 100, TimeUnit.MILLISECONDS);
+			return UdpCommands.EXIT;
+		default:
+			log("unknown command %s", command);
+			return command;
+		}
+	}
+
+	private void sendReply(String reply, SocketAddress to) {
+		try {
+			channel.send(ByteBuffer.wrap(reply.getBytes(StandardCharsets.UTF_8)), to);
+		} catch (IOException e) {
+			log("send error %s", e.getMessage());
+		}
+	}
+
+	/**
+	 * Schedule the faults which happen a set time after starting.
+	 */
+	private void scheduleRunFaults() {
+		cancelRunFaults();
+		runFaults[0] = scheduleFault(script.getStallAfterMillis(), () -> {
+			status = UdpCommands.PAM_STALLED;
+			log("stalled");
+		});
+		runFaults[1] = scheduleFault(script.getHangAfterMillis(), () -> {
+			hung = true;
+			log("hung");
+		});
+		runFaults[2] = scheduleFault(script.getExitAfterMillis(), () -> crash("crash while running"));
+	}
+
+	private ScheduledFuture<?> scheduleFault(long delay, Runnable fault) {
+		if (delay <= 0) {
+			return null;
+		}
+		return scheduler.schedule(fault, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelRunFaults() {
+		for (int i = 0; i < runFaults.length; i++) {
+			if (runFaults[i] != null) {
+				runFaults[i].cancel(false);
+				runFaults[i] = null;
+			}
+		}
+	}
+
+	private void crash(String why) {
+		log("%s, exit code %d", why, script.getExitCode());
+		System.out.flush();
+		Runtime.getRuntime().halt(script.getExitCode());
+	}
+
+	/**
+	 * Update the heartbeat page the same way PAMGuard would: status and time
+	 * first, then the counter. Stops when hung.
+	 */
+	private void startHeartbeat() throws IOException {
+		MappedByteBuffer page;
+		try (FileChannel file = FileChannel.open(heartbeatFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			page = file.map(MapMode.READ_WRITE, 0, HeartbeatPage.SIZE);
+		}
+		long[] counter = new long[1];
+		scheduler.scheduleAtFixedRate(() -> {
+			if (hung) {
+				return;
+			}
+			INTS.setRelease(page, HeartbeatPage.STATUSOFFSET, status);
+			LONGS.setRelease(page, HeartbeatPage.TIMEOFFSET, System.currentTimeMillis());
+			LONGS.setRelease(page, HeartbeatPage.COUNTEROFFSET, ++counter[0]);
+		}, 0, script.getHeartbeatMillis(), TimeUnit.MILLISECONDS);
+		log("heartbeat page %s", heartbeatFile);
+	}
+
+	/**
+	 * Write lines to stdout or stderr as fast as the script says, in batches every 10ms.
+	 */
+	private void startFlood() {
+		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(
+				script.isFloodStderr() ? FileDescriptor.err : FileDescriptor.out), 65536), false);
+		if (script.isFloodStderr() == false) {
+			// so that log lines go through the same buffer and don't get split up. 
+			System.setOut(out);
+		}
+		char[] fill = new char[Math.max(1, script.getFloodLineLength() - 20)];
+		Arrays.fill(fill, 'x');
+		String padding = new String(fill);
+		int perBatch = Math.max(1, script.getFloodLinesPerSecond() / 100);
+		long batchMillis = Math.max(1, 1000L * perBatch / script.getFloodLinesPerSecond());
+		long[] lineCount = new long[1];
+		Thread flood = new Thread(() -> {
+			while (true) {
+				long next = System.currentTimeMillis() + batchMillis;
+				for (int i = 0; i < perBatch; i++) {
+					out.println(++lineCount[0] + " " + padding);
+				}
+				out.flush();
+				long wait = next - System.currentTimeMillis();
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "Simulator flood");
+		flood.setDaemon(true);
+		flood.start();
+		log("flooding %s at %d lines/s", script.isFloodStderr() ? "stderr" : "stdout", script.getFloodLinesPerSecond());
+	}
+
+	private void log(String format, Object... args) {
+		System.out.println("SIM " + System.currentTimeMillis() + " " + String.format(format, args));
+	}
+
+}
@@ -0,0 +1,131 @@
+package simulator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Faults and timings for the PAMGuard simulator. Read from a properties file of
+ * key=value lines given with -simscript, and any key can be overridden with a
+ * system property of the same name prefixed with "sim.", e.g. -Dsim.lossPercent=10.
+ * Times are in milliseconds and a time of 0 means the fault never happens. <p>
+ * <table>
+ * <tr><td>initMillis</td><td>time spent initialising before going idle (2000)</td></tr>
+ * <tr><td>latencyMillis</td><td>delay before every reply (0)</td></tr>
+ * <tr><td>jitterMillis</td><td>extra random delay of up to this before every reply (0)</td></tr>
+ * <tr><td>lossPercent</td><td>percentage of commands which get no reply (0)</td></tr>
+ * <tr><td>crashOnStart</td><td>exit with exitCode instead of starting (false)</td></tr>
+ * <tr><td>stallAfterMillis</td><td>report stalled this long after starting (0)</td></tr>
+ * <tr><td>hangAfterMillis</td><td>stop replying to anything this long after starting (0)</td></tr>
+ * <tr><td>exitAfterMillis</td><td>exit with exitCode this long after starting (0)</td></tr>
+ * <tr><td>exitCode</td><td>exit code for crashes (1)</td></tr>
+ * <tr><td>floodLinesPerSecond</td><td>lines per second written to stdout all the time (0)</td></tr>
+ * <tr><td>floodLineLength</td><td>length of each flood line (100)</td></tr>
+ * <tr><td>floodStderr</td><td>flood stderr instead of stdout (false)</td></tr>
+ * <tr><td>heartbeatMillis</td><td>interval between heartbeat page updates, if -heartbeat is given (100)</td></tr>
+ * <tr><td>seed</td><td>random number seed, so runs with loss and jitter repeat exactly (1)</td></tr>
+ * </table>
+ */
+public class SimulatorScript {
+
+	private Properties properties = new Properties();
+
+	/**
+	 * Load a script.
+	 * @param scriptFile properties file, or null to use the defaults and system properties only
+	 * @throws IOException if the file can't be read
+	 */
+	public SimulatorScript(Path scriptFile) throws IOException {
+		if (scriptFile != null) {
+			try (Reader reader = Files.newBufferedReader(scriptFile)) {
+				properties.load(reader);
+			}
+		}
+	}
+
+	private String get(String key, String defaultValue) {
+		String value = System.getProperty("sim." + key);
+		if (value == null) {
+			value = properties.getProperty(key, defaultValue);
+		}
+		return value.trim();
+	}
+
+	private long getLong(String key, long defaultValue) {
+		return Long.parseLong(get(key, Long.toString(defaultValue)));
+	}
+
+	private int getInt(String key, int defaultValue) {
+		return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+	}
+
+	private boolean getBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(get(key, Boolean.toString(defaultValue)));
+	}
+
+	public long getInitMillis() {
+		return getLong("initMillis", 2000);
+	}
+
+	public long getLatencyMillis() {
+		return getLong("latencyMillis", 0);
+	}
+
+	public long getJitterMillis() {
+		return getLong("jitterMillis", 0);
+	}
+
+	public double getLossPercent() {
+		return Double.parseDouble(get("lossPercent", "0"));
+	}
+
+	public boolean isCrashOnStart() {
+		return getBoolean("crashOnStart", false);
+	}
+
+	public long getStallAfterMillis() {
+		return getLong("stallAfterMillis", 0);
+	}
+
+	public long getHangAfterMillis() {
+		return getLong("hangAfterMillis", 0);
+	}
+
+	public long getExitAfterMillis() {
+		return getLong("exitAfterMillis", 0);
+	}
+
+	public int getExitCode() {
+		return getInt("exitCode", 1);
+	}
+
+	public int getFloodLinesPerSecond() {
+		return getInt("floodLinesPerSecond", 0);
+	}
+
+	public int getFloodLineLength() {
+		return getInt("floodLineLength", 100);
+	}
+
+	public boolean isFloodStderr() {
+		return getBoolean("floodStderr", false);
+	}
+
+	public long getHeartbeatMillis() {
+		return getLong("heartbeatMillis", 100);
+	}
+
+	public long getSeed() {
+		return getLong("seed", 1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("init %dms, latency %d+%dms, loss %3.1f%%, crashOnStart %s, stall %dms, hang %dms, exit %dms, flood %d lines/s",
+				getInitMillis(), getLatencyMillis(), getJitterMillis(), getLossPercent(), isCrashOnStart(),
+				getStallAfterMillis(), getHangAfterMillis(), getExitAfterMillis(), getFloodLinesPerSecond());
+	}
+
+}
@@ -4,32 +4,28 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.TimeZone;
+import java.util.concurrent.locks.LockSupport;
 
 import pamdog.ConfigSettings;
 import pamdog.DogControl;
-import pamdog.DogUDP;
 import pamdog.IdleFunction;
 import pamdog.UdpCommands;
 
+/**
+ * Log of commands or PAMGuard output. Items are written to file by a writer thread, 
+ * so that slow disks never hold up whoever is logging. Items are passed to the writer
+ * through a lock free ring buffer and written in batches, with the file flushed once 
+ * FLUSHCHARS have been written or FLUSHMILLIS after the first unflushed item.  
+ * @author Doug Gillespie
+ *
+ */
 public class DogLog {
 
 	private String logTitle;
-	
-	private List<LoggedItem> loggedItems = new LinkedList<LoggedItem>();
 
 	private boolean logToFile;
 	
-	private boolean broadcastUDP;
-	
-	private DogUDP dogUDPErrors;
+	private volatile TelemetryPublisher publisher;
 	
 	String newline = System.getProperty("line.separator");
 	
@@ -37,133 +33,218 @@ public class DogLog {
 	
 	private static final long oneDay = oneHour*24;
 	
-	/**
-	 * How long to keep local list in seconds. 
-	 */
-	private long logHistory = 600;
+	private static final LogDateFormatter dateFormatter = new LogDateFormatter();
 
 	private DogControl dogControl;
+	
+	/**
+	 * Number of items the ring buffer can hold before items get dropped
+	 */
+	private static final int RINGSIZE = 8192;
+	
+	/**
+	 * Flush the file once this many characters are waiting
+	 */
+	private static final int FLUSHCHARS = 65536;
+	
+	/**
+	 * Flush the file this long after the first unflushed item
+	 */
+	private static final long FLUSHMILLIS = 200;
+	
+	/**
+	 * Put in the ring buffer to tell the writer to close the file
+	 */
+	private static final LoggedItem CLOSEMARKER = new LoggedItem(0, null);
+	
+	private LogRingBuffer<LoggedItem> ringBuffer;
+	
+	private Thread writerThread;
+	
+	private volatile boolean writerWaiting;
+	
+	private Object closeLock = new Object();
+	
+	private long closesRequested, closesDone;
 
 	public DogLog(DogControl dogControl, String logTitle, boolean logToFile) {
 		this.dogControl = dogControl;
 		this.logTitle = logTitle;
 		this.logToFile = logToFile;
-		this.broadcastUDP = false;
+		if (logToFile) {
+			ringBuffer = new LogRingBuffer<LoggedItem>(RINGSIZE);
+			writerThread = new Thread(new LogWriter(), logTitle + " log writer");
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
 	}
 	
-	synchronized public void logItem(String logText) {
-		removeOldItems();
-		LoggedItem loggedItem;
-		loggedItems.add(loggedItem = new LoggedItem(logText));
+	/**
+	 * Log an item. 
+	 * @param logText text
+	 * @return false if the item had to be dropped because the writer isn't keeping up, 
+	 * so that callers logging a lot can keep their own count of what's missing. 
+	 */
+	public boolean logItem(String logText) {
+		LoggedItem loggedItem = new LoggedItem(logText);
+		boolean queued = true;
 		if (logToFile) {
-			fileLog(loggedItem);
+			queued = queueItem(loggedItem);
 		}
-		if(broadcastUDP) {
-			broadcastMessage(loggedItem);
+		TelemetryPublisher p = publisher;
+		if (p != null) {
+			p.publish(loggedItem);
 		}
+		return queued;
 	}
 	
-	synchronized public void logItem(String format, Object... objects) {
+	public void logItem(String format, Object... objects) {
 		String string = String.format(format, objects);
 		logItem(string);
 	}
 	
-	synchronized public void removeOldItems() {
-		long start = System.currentTimeMillis() - logHistory * 1000;
-		ListIterator<LoggedItem> it = loggedItems.listIterator();
-		while (it.hasNext()) {
-			LoggedItem logItem = it.next();
-			if (logItem.logTime >= start) {
-				break;
-			}
-			else {
-				it.remove();
-			}
+	/**
+	 * Pass an item to the writer thread. Never blocks, if the ring buffer 
+	 * is full the item is dropped and counted. 
+	 * @param loggedItem
+	 * @return false if it was dropped
+	 */
+	private boolean queueItem(LoggedItem loggedItem) {
+		boolean queued = ringBuffer.offer(loggedItem);
+		if (writerWaiting) {
+			LockSupport.unpark(writerThread);
 		}
+		return queued;
 	}
 	
 	/**
-	 * Count how many recent logs contain the string
-	 * @param string string to search for
-	 * @param countSeconds number of seconds to search
-	 * @return count of strings containing. 
+	 * @return number of items which never made it to file because 
+	 * the writer couldn't keep up. 
 	 */
-	synchronized public int countLogsContaining(String string, int countSeconds) {
-		long start = System.currentTimeMillis() - countSeconds * 1000;
-		ListIterator<LoggedItem> it = loggedItems.listIterator();
-		int n = 0;
-		while (it.hasNext()) {
-			LoggedItem logItem = it.next();
-			if (logItem.logTime < start) {
-				continue;
-			}
-			String logLine = logItem.logString;
-			if (logLine == null) {
-				continue;
-			}
-			if (logLine.contains(string)) {
-				n++;
-			}
-		}
-		return n;
+	public long getDroppedCount() {
+		return ringBuffer == null ? 0 : ringBuffer.getDroppedCount();
 	}
+
+	/*
+	 * Everything from here down to closeWriter() is only ever called from the writer thread. 
+	 */
+	private BufferedWriter writer;
+
+	private long logFileStart = 0;
+	
+	private StringBuilder consoleText = new StringBuilder();
+	
+	private int unflushedChars;
+	
+	private long firstUnflushed;
+	
+	private long reportedDrops;
+	
 	/**
-	 * Count how many recent logs start with the string
-	 * @param string string to search for
-	 * @param countSeconds number of seconds to search
-	 * @return count of strings starting with string. 
+	 * Writes items from the ring buffer to file and the console. 
 	 */
-	synchronized public int countLogsStarting(String string, int countSeconds) {
-		long start = System.currentTimeMillis() - countSeconds * 1000;
-		ListIterator<LoggedItem> it = loggedItems.listIterator();
-		int n = 0;
-		while (it.hasNext()) {
-			LoggedItem logItem = it.next();
-			if (logItem.logTime < start) {
-				continue;
-			}
-			String logLine = logItem.logString;
-			if (logLine == null) {
-				continue;
-			}
-			if (logLine.startsWith(string)) {
-				n++;
+	private class LogWriter implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				LoggedItem item = ringBuffer.poll();
+				if (item == null) {
+					if (unflushedChars > 0 && System.currentTimeMillis() - firstUnflushed >= FLUSHMILLIS) {
+						flushFile();
+					}
+					writerWaiting = true;
+					if (ringBuffer.isEmpty()) {
+						long wait = FLUSHMILLIS;
+						if (unflushedChars > 0) {
+							wait = Math.max(1, firstUnflushed + FLUSHMILLIS - System.currentTimeMillis());
+						}
+						LockSupport.parkNanos(wait * 1000000L);
+					}
+					writerWaiting = false;
+					continue;
+				}
+				if (item == CLOSEMARKER) {
+					flushFile();
+					closeWriter();
+					synchronized (closeLock) {
+						closesDone++;
+						closeLock.notifyAll();
+					}
+					continue;
+				}
+				long drops = ringBuffer.getDroppedCount();
+				if (drops > reportedDrops) {
+					fileLog(new LoggedItem(String.format("%d log items dropped, log writer not keeping up", 
+							drops - reportedDrops)));
+					reportedDrops = drops;
+				}
+				fileLog(item);
+				if (unflushedChars >= FLUSHCHARS || System.currentTimeMillis() - firstUnflushed >= FLUSHMILLIS) {
+					flushFile();
+				}
 			}
 		}
-		return n;
+		
 	}
-
-	BufferedWriter writer;
-
-	private long logFileStart = 0;
+	
 	/**
 	 * Log an item to file. 
 	 * @param loggedItem
 	 */
 	private void fileLog(LoggedItem loggedItem) {
 		checkFile();
-		String strp = String.format("%s %s", getLogDate(loggedItem.logTime), loggedItem.logString);
-		System.out.println(strp);
-		String str = String.format("%s %s%s", getLogDate(loggedItem.logTime), loggedItem.logString, newline);
+		// date string is shared by everything logged in the same second, so no garbage
+		String date = getLogDate(loggedItem.logTime);
+		String text = String.valueOf(loggedItem.logString);
+		if (unflushedChars == 0) {
+			firstUnflushed = System.currentTimeMillis();
+		}
+		consoleText.append(date).append(' ').append(text).append(newline);
+		unflushedChars += date.length() + text.length() + 1 + newline.length();
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.write(date);
+			writer.write(' ');
+			writer.write(text);
+			writer.write(newline);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Write everything waiting to the console and the file. 
+	 */
+	private void flushFile() {
+		if (consoleText.length() > 0) {
+			System.out.print(consoleText);
+			consoleText.setLength(0);
+		}
+		unflushedChars = 0;
+		if (writer == null) {
+			return;
+		}
 		try {
-			writer.write(str);
 			writer.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-//		closeFile();
 	}
 	
 	private void checkFile() {
 		long now = System.currentTimeMillis();	
 		long fileStart = getNewFileName(now);
 		if (logFileStart != fileStart) {
-			closeFile();
+			flushFile();
+			closeWriter();
 		}
 		if (writer == null) {
 			File logFile = new File(createFileName(fileStart));
 			try {
-				writer = new BufferedWriter(new FileWriter(logFile, true));
+				writer = new BufferedWriter(new FileWriter(logFile, true), FLUSHCHARS);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -197,7 +278,7 @@ public class DogLog {
 		return time*roundFactor;
 	}
 	
-	public void closeFile() {
+	private void closeWriter() {
 		if (writer == null) return;
 		try {
 			writer.close();
@@ -207,10 +288,63 @@ public class DogLog {
 		writer = null;
 	}
 	
+	/**
+	 * Write everything that's been logged so far and close the file. Waits 
+	 * up to a few seconds for the writer thread to get there. If anything else
+	 * is logged afterwards, the file is opened again. 
+	 */
+	public void closeFile() {
+		if (writerThread == null) return;
+		long ticket;
+		synchronized (closeLock) {
+			ticket = ++closesRequested;
+		}
+		while (ringBuffer.tryOffer(CLOSEMARKER) == false) {
+			LockSupport.unpark(writerThread);
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		LockSupport.unpark(writerThread);
+		long giveUp = System.currentTimeMillis() + 5000;
+		synchronized (closeLock) {
+			while (closesDone < ticket) {
+				long wait = giveUp - System.currentTimeMillis();
+				if (wait <= 0) {
+					break;
+				}
+				try {
+					closeLock.wait(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+	
 	public static String getLogFolder() {
 		return ConfigSettings.getPamguardFolder() + File.separator + "doglogs";
 	}
 
+	/**
+	 * Get the file for a day's worth of something written straight to file 
+	 * rather than logged item by item. It's in the log folder and named by 
+	 * the start of the day. 
+	 * @param title start of the file name
+	 * @param timeInMillis any time in the day
+	 * @return file
+	 */
+	public static File getDailyFile(String title, long timeInMillis) {
+		File path = new File(getLogFolder());
+		if (path.exists() == false) {
+			path.mkdirs();
+		}
+		long day = timeInMillis / oneDay * oneDay;
+		return new File(path, title.replace(" ", "_") + getLogDate(day) + ".txt");
+	}
+
 	private String createFileName(long now) {
 		String name = getLogFolder();
 		File path = new File(name);
@@ -221,58 +355,29 @@ public class DogLog {
 		return name;
 	}
 	
-	public static String getLogDate(long timeInMillis) {
-		Calendar c = Calendar.getInstance();
-		c.setTimeInMillis(timeInMillis);
-		TimeZone defaultTimeZone = TimeZone.getTimeZone("UTC");
-		c.setTimeZone(defaultTimeZone);
-
-		DateFormat df = new SimpleDateFormat("yyyyMMdd_HHmmss");
-		df.setTimeZone(defaultTimeZone);
-		Date d = c.getTime();
-		//		return String.format("%tY-%<tm-%<td %<tH:%<tM:%<tS", d);
-		return df.format(d);
-	}
-
 	/**
-	 * Set up the DogUDP object to broadcast all commands to UDP port
-	 * 
-	 * @param udpPortErrors port number to send errors/commands to
+	 * Format a time for the logs
+	 * @param timeInMillis time in milliseconds
+	 * @return time as yyyyMMdd_HHmmss in UTC
 	 */
-	public void setupBroadcast(int udpPortErrors) {
-		this.broadcastUDP = true;
-		dogUDPErrors = new DogUDP(dogControl, null);
-
-		// find the next open UDP port
-		int freePort = DogUDP.findFreePort(udpPortErrors, udpPortErrors+10);
-		System.out.println("Free UDP port for command broadcast is " + freePort);
-		if (freePort <= 0) {
-			broadcastUDP = false;
-			logItem("Error: Unable to find free UDP port for command logging");
-			return;
-		}
-		dogUDPErrors.setCurrentUdpPort(freePort);
-		logItem("Beginning PamDog command broadcast");
-
+	public static String getLogDate(long timeInMillis) {
+		return dateFormatter.format(timeInMillis);
 	}
-	
+
 	/**
-	 * Broadcast the loggedItem information to the UDP port
+	 * Set a publisher to send all log items to as telemetry
 	 * 
-	 * @param loggedItem
+	 * @param publisher publisher, or null to stop
 	 */
-	private void broadcastMessage(LoggedItem loggedItem) {
-		String str = String.format("%s %s%s", getLogDate(loggedItem.logTime), loggedItem.logString, newline);
-//		System.out.println("Broadcasting: " + str);
-		String ans = dogUDPErrors.sendCommand(str, 10);
+	public void setPublisher(TelemetryPublisher publisher) {
+		this.publisher = publisher;
 	}
 
 	/**
-	 * Sets the boolean controlling the UDP command broadcast to false
+	 * @return the publisher log items are sent to, or null
 	 */
-	public void stopBroadcasting() {
-		this.broadcastUDP = false;
+	public TelemetryPublisher getPublisher() {
+		return publisher;
 	}
 
-
 }
@@ -0,0 +1,94 @@
+package Logging;
+
+/**
+ * Formats times as yyyyMMdd_HHmmss in UTC for the logs without creating a
+ * Calendar and SimpleDateFormat each time. The last formatted second is cached,
+ * so all the lines logged within the same second share the same string and
+ * formatting them allocates nothing. Safe to use from any thread.
+ */
+public class LogDateFormatter {
+
+	/**
+	 * Length of a formatted date
+	 */
+	public static final int LENGTH = 15;
+
+	private static final long DAYMILLIS = 86400000L;
+
+	private volatile CachedSecond cached;
+
+	/**
+	 * Formatted string for one second. Never changed once made, so it
+	 * can be swapped in and out of the cache without any locking.
+	 */
+	private static class CachedSecond {
+		private final long second;
+		private final String string;
+		private CachedSecond(long second, String string) {
+			this.second = second;
+			this.string = string;
+		}
+	}
+
+	/**
+	 * Format a time
+	 * @param timeMillis time in milliseconds
+	 * @return time as yyyyMMdd_HHmmss
+	 */
+	public String format(long timeMillis) {
+		long second = Math.floorDiv(timeMillis, 1000L);
+		CachedSecond c = cached;
+		if (c != null && c.second == second) {
+			return c.string;
+		}
+		char[] chars = new char[LENGTH];
+		format(timeMillis, chars, 0);
+		c = new CachedSecond(second, new String(chars));
+		cached = c;
+		return c.string;
+	}
+
+	/**
+	 * Format a time straight into a char array
+	 * @param timeMillis time in milliseconds
+	 * @param buffer buffer to write into
+	 * @param offset position in buffer to start writing. There must be at
+	 * least LENGTH characters after it.
+	 * @return position after the last character written
+	 */
+	public int format(long timeMillis, char[] buffer, int offset) {
+		long days = Math.floorDiv(timeMillis, DAYMILLIS);
+		int secOfDay = (int) (Math.floorMod(timeMillis, DAYMILLIS) / 1000);
+		/*
+		 * Civil date from days since 1970-01-01, valid for the proleptic
+		 * Gregorian calendar (H. Hinnant's days_from_civil in reverse).
+		 */
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+		int doy = doe - (365*yoe + yoe/4 - yoe/100);
+		int mp = (5*doy + 2) / 153;
+		int day = doy - (153*mp + 2)/5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+		int pos = offset;
+		pos = put(buffer, pos, (int) year, 4);
+		pos = put(buffer, pos, month, 2);
+		pos = put(buffer, pos, day, 2);
+		buffer[pos++] = '_';
+		pos = put(buffer, pos, secOfDay / 3600, 2);
+		pos = put(buffer, pos, (secOfDay / 60) % 60, 2);
+		pos = put(buffer, pos, secOfDay % 60, 2);
+		return pos;
+	}
+
+	private int put(char[] buffer, int pos, int value, int digits) {
+		for (int i = digits-1; i >= 0; i--) {
+			buffer[pos + i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + digits;
+	}
+
+}
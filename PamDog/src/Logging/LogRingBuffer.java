@@ -0,0 +1,110 @@
+package Logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free ring buffer for passing log items from any number of threads
+ * to a single writer thread. Nothing ever blocks: if the buffer is full the item
+ * is dropped and counted.
+ *
+ * @param <T> item type
+ */
+public class LogRingBuffer<T> {
+
+	private AtomicReferenceArray<T> slots;
+
+	private int capacity;
+
+	private int mask;
+
+	/**
+	 * Next slot to be claimed by a producer
+	 */
+	private AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Next slot to be read. Only ever written by the consumer
+	 */
+	private volatile long head;
+
+	private AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param minCapacity minimum capacity, rounded up to a power of 2
+	 */
+	public LogRingBuffer(int minCapacity) {
+		capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+		mask = capacity - 1;
+		slots = new AtomicReferenceArray<>(capacity);
+	}
+
+	/**
+	 * Add an item. Can be called from any thread.
+	 * @param item item, not null
+	 * @return true if it was added, false if the buffer was full and it was dropped.
+	 */
+	public boolean offer(T item) {
+		if (tryOffer(item)) {
+			return true;
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Add an item without counting it as dropped if the buffer is full, for
+	 * callers that will try again.
+	 * @param item item, not null
+	 * @return true if it was added.
+	 */
+	public boolean tryOffer(T item) {
+		long t;
+		do {
+			t = tail.get();
+			if (t - head >= capacity) {
+				return false;
+			}
+		} while (tail.compareAndSet(t, t+1) == false);
+		slots.set((int) (t & mask), item);
+		return true;
+	}
+
+	/**
+	 * Take the next item. Must only be called from the one consumer thread.
+	 * @return next item, or null if there isn't one yet.
+	 */
+	public T poll() {
+		int i = (int) (head & mask);
+		T item = slots.get(i);
+		if (item == null) {
+			// empty, or a producer has claimed the slot but not filled it yet.
+			return null;
+		}
+		slots.set(i, null);
+		head = head + 1;
+		return item;
+	}
+
+	/**
+	 * @return true if nothing is waiting to be read
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head;
+	}
+
+	/**
+	 * @return number of items dropped because the buffer was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+}
@@ -0,0 +1,313 @@
+package Logging;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One way telemetry stream of log items and status events over UDP. Nobody
+ * replies, so nothing waits. Sent to a multicast group, any number of programs
+ * on this machine can subscribe to the one stream at no extra cost, or sent
+ * straight to a single port on this machine if no group is set.<p>
+ * Events are passed to a sender thread through a ring buffer and as many as will
+ * fit are packed into each datagram. If the sender can't keep up, or the socket
+ * buffer fills, events are dropped and counted rather than holding anything up.
+ * Events get sequence numbers in the order the sender takes them, so a gap in the
+ * sequence means datagrams were lost on the way. Events dropped before they got
+ * that far are reported in a DROPPED event rather than leaving a gap.<p>
+ * Each datagram is text. The first line is
+ * <br>PAMDOG &lt;sequence of first event&gt; &lt;number of events&gt;<br>
+ * followed by a line for each event
+ * <br>&lt;sequence&gt; &lt;type&gt; &lt;yyyyMMdd_HHmmss&gt; &lt;text&gt;
+ */
+public class TelemetryPublisher {
+
+	/**
+	 * Max datagram size over IPv4. Fits in a standard 1500 byte MTU with the
+	 * 20 byte IP and 8 byte UDP headers.
+	 */
+	public static final int MAXPACKET = 1472;
+
+	/**
+	 * Max datagram size over IPv6, which has a 40 byte IP header.
+	 */
+	public static final int MAXPACKET6 = 1452;
+
+	/**
+	 * Event type for log items
+	 */
+	public static final String LOG = "LOG";
+
+	/**
+	 * Event type for status of PAMGuard and the watchdog
+	 */
+	public static final String STATUS = "STATUS";
+
+	/**
+	 * Event type for reports of events which were dropped without being sent
+	 */
+	public static final String DROPPED = "DROPPED";
+
+	private static final int QUEUESIZE = 1024;
+
+	/**
+	 * Room to leave for the header line at the start of each datagram
+	 */
+	private static final int HEADERSPACE = 48;
+
+	private LogRingBuffer<TelemetryEvent> queue = new LogRingBuffer<>(QUEUESIZE);
+
+	private DatagramChannel channel;
+
+	private InetSocketAddress target;
+
+	private Thread senderThread;
+
+	private volatile boolean senderWaiting;
+
+	private volatile boolean keepSending = true;
+
+	/**
+	 * Only written by the sender thread
+	 */
+	private volatile long nextSequence;
+
+	private int maxPacket;
+
+	private ByteBuffer packet;
+
+	private ByteBuffer events;
+
+	private long firstSequence;
+
+	private int eventsInPacket;
+
+	private AtomicLong sendDrops = new AtomicLong();
+
+	/**
+	 * Drops which have been reported in a DROPPED event
+	 */
+	private long reportedQueueDrops, reportedSendDrops;
+
+	private volatile long packetsSent;
+
+	private static final String newline = "\n";
+
+	/**
+	 * Create a publisher
+	 * @param group multicast group address, or null or empty to send to a
+	 * single port on this machine
+	 * @param port UDP port
+	 * @throws IOException if the group isn't a valid multicast address or the socket can't be opened
+	 */
+	public TelemetryPublisher(String group, int port) throws IOException {
+		if (group == null || group.trim().length() == 0) {
+			channel = DatagramChannel.open();
+			target = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		}
+		else {
+			InetAddress groupAddress = InetAddress.getByName(group.trim());
+			if (groupAddress.isMulticastAddress() == false) {
+				throw new IOException(group + " is not a multicast address");
+			}
+			channel = DatagramChannel.open(groupAddress.getAddress().length == 4 ?
+					StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+			// TTL 0 keeps it on this machine.
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 0);
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			target = new InetSocketAddress(groupAddress, port);
+		}
+		maxPacket = target.getAddress() instanceof Inet6Address ? MAXPACKET6 : MAXPACKET;
+		packet = ByteBuffer.allocateDirect(maxPacket);
+		events = ByteBuffer.allocate(maxPacket - HEADERSPACE);
+		channel.configureBlocking(false);
+		senderThread = new Thread(new Sender(), "Telemetry " + target);
+		senderThread.setDaemon(true);
+		senderThread.start();
+	}
+
+	/**
+	 * Publish a log item. Never blocks.
+	 * @param loggedItem item
+	 */
+	public void publish(LoggedItem loggedItem) {
+		publish(LOG, loggedItem.logTime, loggedItem.logString);
+	}
+
+	/**
+	 * Publish an event. Never blocks.
+	 * @param type event type, e.g. LOG or STATUS
+	 * @param timeMillis time of event
+	 * @param text event text
+	 */
+	public void publish(String type, long timeMillis, String text) {
+		queue.offer(new TelemetryEvent(type, timeMillis, text));
+		if (senderWaiting) {
+			LockSupport.unpark(senderThread);
+		}
+	}
+
+	/**
+	 * @return number of events which have been dropped, either because the queue
+	 * was full or the datagram couldn't be sent.
+	 */
+	public long getDroppedCount() {
+		return queue.getDroppedCount() + sendDrops.get();
+	}
+
+	/**
+	 * @return number of datagrams sent
+	 */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 * @return sequence number the next event will get
+	 */
+	public long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * @return largest datagram sent, depending on whether the target is IPv4 or IPv6
+	 */
+	public int getMaxPacket() {
+		return maxPacket;
+	}
+
+	/**
+	 * @return where the telemetry is sent
+	 */
+	public InetSocketAddress getTarget() {
+		return target;
+	}
+
+	/**
+	 * Stop the sender and close the socket. Anything still queued is lost.
+	 */
+	public void close() {
+		keepSending = false;
+		LockSupport.unpark(senderThread);
+	}
+
+	private class TelemetryEvent {
+		private String type;
+		private long time;
+		private String text;
+		private TelemetryEvent(String type, long time, String text) {
+			this.type = type;
+			this.time = time;
+			this.text = text;
+		}
+	}
+
+	private class Sender implements Runnable {
+
+		@Override
+		public void run() {
+			while (keepSending) {
+				TelemetryEvent event = queue.poll();
+				if (event == null) {
+					// nothing more for now, so send what's there.
+					sendPacket();
+					senderWaiting = true;
+					if (queue.isEmpty() && keepSending) {
+						LockSupport.parkNanos(200000000L);
+					}
+					senderWaiting = false;
+					continue;
+				}
+				reportDrops(event.time);
+				addEvent(event);
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Add a DROPPED event if anything has been dropped since the last one.
+	 * @param time time for the event
+	 */
+	private void reportDrops(long time) {
+		long queueDrops = queue.getDroppedCount();
+		long sendFails = sendDrops.get();
+		if (queueDrops == reportedQueueDrops && sendFails == reportedSendDrops) {
+			return;
+		}
+		addEvent(new TelemetryEvent(DROPPED, time, String.format("queue full %d, send failed %d",
+				queueDrops - reportedQueueDrops, sendFails - reportedSendDrops)));
+		reportedQueueDrops = queueDrops;
+		reportedSendDrops = sendFails;
+	}
+
+	private void addEvent(TelemetryEvent event) {
+		String text = String.valueOf(event.text);
+		if (text.indexOf('\n') >= 0) {
+			// one line per event
+			text = text.replace('\n', ' ');
+		}
+		long sequence = nextSequence;
+		String line = sequence + " " + event.type + " " + DogLog.getLogDate(event.time) +
+				" " + text + newline;
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > events.remaining()) {
+			sendPacket();
+		}
+		if (eventsInPacket == 0) {
+			firstSequence = sequence;
+		}
+		nextSequence = sequence + 1;
+		if (bytes.length <= events.remaining()) {
+			events.put(bytes);
+		}
+		else {
+			// a single event longer than a whole datagram gets cut short, at the start
+			// of a character rather than part way through one, and still ends the line.
+			int n = events.remaining() - 1;
+			while (n > 0 && (bytes[n] & 0xC0) == 0x80) {
+				n--;
+			}
+			events.put(bytes, 0, n);
+			events.put((byte) '\n');
+		}
+		eventsInPacket++;
+	}
+
+	private void sendPacket() {
+		if (eventsInPacket == 0) {
+			return;
+		}
+		String header = "PAMDOG " + firstSequence + " " + eventsInPacket + newline;
+		packet.clear();
+		packet.put(header.getBytes(StandardCharsets.US_ASCII));
+		events.flip();
+		packet.put(events);
+		packet.flip();
+		try {
+			if (channel.send(packet, target) == 0) {
+				// socket buffer full
+				sendDrops.addAndGet(eventsInPacket);
+			}
+			else {
+				packetsSent++;
+			}
+		} catch (IOException e) {
+			sendDrops.addAndGet(eventsInPacket);
+		}
+		events.clear();
+		eventsInPacket = 0;
+	}
+
+}
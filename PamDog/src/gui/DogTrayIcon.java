@@ -0,0 +1,131 @@
+package gui;
+
+import java.awt.AWTException;
+import java.awt.MenuItem;
+import java.awt.PopupMenu;
+import java.awt.SystemTray;
+import java.awt.TrayIcon;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import javax.swing.UIManager;
+
+import pamdog.DogControl;
+import pamdog.DogParams;
+
+/**
+ * System tray icon and menu for PAMDog. This is the only way in to the GUI, so
+ * when running with -nogui it never gets created and none of the AWT / Swing
+ * classes get loaded.
+ */
+public class DogTrayIcon {
+
+	private TrayIcon trayIcon;
+
+	private DogControl dogControl;
+
+	/**
+	 * Create the tray icon and add it to the system tray
+	 * @param dogControl dog control
+	 */
+	public DogTrayIcon(DogControl dogControl) {
+		this.dogControl = dogControl;
+		trayIcon = new TrayIcon(PamDogGUI.getIconImageSmall(), "PAMGuard watchdog", getTrayMenu());
+		trayIcon.addMouseListener(new TrayMouse());
+		trayIcon.addActionListener(new ConfigureDog());
+		try {
+			SystemTray.getSystemTray().add(trayIcon);
+		} catch (AWTException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Set the look and feel. Call before creating any GUI components.
+	 */
+	public static void setLookAndFeel() {
+		try {
+//		    for (LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
+//		        if ("Nimbus".equals(info.getName())) {
+//		            UIManager.setLookAndFeel(info.getClassName());
+//		            break;
+//		        }
+//		    }
+			if (System.getProperty("os.name").startsWith("windows")) {
+				UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
+		    }
+		} catch (Exception e) {
+		    // If Nimbus is not available, you can set the GUI to another look and feel.
+		}
+	}
+
+	/**
+	 * Create the popup menu for the tray
+	 * @return
+	 */
+	private PopupMenu getTrayMenu() {
+		PopupMenu pop = new PopupMenu();
+		MenuItem mi = new MenuItem("Quit PAMDog");
+		mi.addActionListener(new QuitDog());
+		pop.add(mi);
+		mi = new MenuItem("PAMDog Settings ...");
+		mi.addActionListener(new ConfigureDog());
+		pop.add(mi);
+		mi = new MenuItem("PAMDog Help");
+		mi.addActionListener(new PamdogHelp());
+		pop.add(mi);
+		return pop;
+	}
+
+	/**
+	 * Show the settings dialog and use the new settings if
+	 * it's closed with OK
+	 */
+	public void configure() {
+		DogParams newParams = DogDialog.showDialog(dogControl.getParams(), dogControl);
+		if (newParams != null) {
+			dogControl.setParams(newParams);
+		}
+	}
+
+	/**
+	 * Called before exit - removes tray icon. this will
+	 * happen anyway, but this makes it happen quicker.
+	 */
+	public void destroy() {
+		SystemTray.getSystemTray().remove(trayIcon);
+	}
+
+	private class TrayMouse extends MouseAdapter {
+		@Override
+		public void mouseClicked(MouseEvent me) {
+			if (me.getButton() == MouseEvent.BUTTON1) {
+				configure();
+			}
+		}
+	}
+
+	private class QuitDog implements ActionListener {
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			dogControl.quitDog();
+		}
+	}
+
+	private class ConfigureDog implements ActionListener {
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			configure();
+		}
+	}
+
+	private class PamdogHelp implements ActionListener {
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			DogHelp.getHelp().showHelp();
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package pamdog;
+
+/**
+ * Ways of dealing with the output and errors PAMGuard writes to stdout and stderr
+ */
+public enum CaptureMode {
+	/**
+	 * Read every line into the PAMGuard log, where it can be counted and is sent
+	 * out with the telemetry.
+	 */
+	LINES,
+	/**
+	 * The OS appends output and errors straight to the day's PAMGuard output file,
+	 * so the dog never sees them. Cheapest, but the file doesn't change at midnight
+	 * until PAMGuard is next launched.
+	 */
+	REDIRECT,
+	/**
+	 * The dog copies output and errors to the day's PAMGuard output file a block at
+	 * a time without splitting them into lines. Only lines containing one of the
+	 * capture patterns go into the PAMGuard log.
+	 */
+	PUMP;
+}
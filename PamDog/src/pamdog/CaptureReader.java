@@ -0,0 +1,30 @@
+package pamdog;
+
+/**
+ * Something run by OutputCapture to deal with the output from PAMGuard. 
+ */
+public interface CaptureReader extends Runnable {
+
+	/**
+	 * Stop reading and close the stream. Nothing more read after this 
+	 * should be passed on. 
+	 */
+	public void cancel();
+
+	/**
+	 * @return id of the launch this is reading from
+	 */
+	public int getLaunchId();
+
+	/**
+	 * @return lines and bytes per second being read
+	 */
+	public RateMeter getRateMeter();
+
+	/**
+	 * @return summary of what's been read, for the command log when the 
+	 * reader finishes
+	 */
+	public String getSummary();
+
+}
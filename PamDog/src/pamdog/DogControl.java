@@ -1,21 +1,26 @@
 package pamdog;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.TimeUnit;
-
-import javax.swing.SwingWorker;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import pamdog.RestartInfo.RestartType;
 import Logging.DogLog;
-import gui.DogDialog;
+import Logging.TelemetryPublisher;
 
-public class DogControl extends SwingWorker<Integer, ControlMessage> {
+/**
+ * Core of the watchdog, which launches and supervises PAMGuard. This has no 
+ * GUI dependencies, the tray icon and dialogs in the gui package sit on top of it. 
+ * @author Doug Gillespie
+ *
+ */
+public class DogControl {
 
 	private DogParams dogParams = new DogParams();
 
@@ -23,11 +28,17 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 
 	protected boolean keepRunning = true;
 
-	private DogUDP dogUDP;
+	private volatile DogTransport transport;
 
 	protected Process process;
 
 	private Object processSynch = new Object();
+	
+	/**
+	 * Set once PAMGuard has been told to exit or killed, so that 
+	 * it ending isn't treated as a crash. 
+	 */
+	private volatile boolean exitExpected;
 
 	private DogLog commandLog;
 
@@ -39,6 +50,62 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 	
 	private String configPath;
 	
+	/**
+	 * Set false if this PAMGuard instance doesn't answer the summary command. 
+	 * This and the other probe state are updated by the threads replies come back 
+	 * on and read by the supervisor and the GUI. 
+	 */
+	private volatile boolean summarySupported = true;
+	
+	private AtomicInteger summaryMisses = new AtomicInteger();
+	
+	private AtomicInteger probeCount = new AtomicInteger();
+	
+	private volatile ProbeResult lastProbe;
+	
+	/**
+	 * Failure detector fed each time PAMGuard reports that it's running. 
+	 */
+	private PhiAccrualDetector progressDetector = new PhiAccrualDetector(100, 1000, 10000, 1000);
+	
+	private DogSupervisor supervisor;
+	
+	private OutputCapture outputCapture;
+	
+	/**
+	 * Counts of recent restarts and supervision events, for rate limiting
+	 */
+	private EventCounters eventCounters = new EventCounters();
+	
+	/**
+	 * Telemetry stream of log and status events, null if not enabled
+	 */
+	private volatile TelemetryPublisher telemetry;
+	
+	/**
+	 * Memory mapped heartbeat page shared with PAMGuard, null if not used
+	 */
+	private volatile HeartbeatPage heartbeatPage;
+	
+	private ProcessKiller processKiller;
+	
+	/**
+	 * How long the heartbeat counter can stay still before going back to UDP probes
+	 */
+	private static final long HEARTBEATSTALE = 2000;
+	
+	/**
+	 * Summary is only asked for on one probe in this many, since it's only 
+	 * for information and status is enough to tell how PAMGuard is. 
+	 */
+	private static final int SUMMARYPROBES = 10;
+	
+	/**
+	 * Environment variables the JVM picks options up from, which would override 
+	 * the memory etc. the dog launches PAMGuard with. 
+	 */
+	private static final String[] JAVAENVIRONMENT = {"JAVA_TOOL_OPTIONS", "_JAVA_OPTIONS", "JDK_JAVA_OPTIONS"};
+	
 
 	public ConfigSettings getConfigSettings() {
 		return configSettings;
@@ -53,17 +120,18 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 		this.setRunGUI(runGUI);
 		this.configPath = configPath;
 		intialiseSettings();
+		eventCounters.seed(dogParams.getRestarts());
 		this.idleFunction = new IdleFunction(this);
 		commandLog = new DogLog(this, "Commands", true);
-		dogUDP = idleFunction.getDogUDP();
+		supervisor = new DogSupervisor(this, commandLog);
+		processKiller = new ProcessKiller(this, commandLog);
+		transport = idleFunction.getTransport();
+		outputCapture = new OutputCapture(idleFunction, commandLog);
 		controlStart = System.currentTimeMillis();
-		if(runGUI) {
-			idleFunction.prepare();
-		}else {
+		if(!runGUI) {
 			activateWatchDog(true);
 		}
 		setBroadcast();
-		idleFunction.run();
 	
 	}
 	
@@ -72,15 +140,26 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 		String libFolder = null;
 		String psfPath = null;
 		String options = null;
+		String vmOptions = null;
 		int udpPort = 0;
 		int MsMem = 0;
 		int MxMem = 0;
+		double phiDead = 0;
+		double phiStall = 0;
+		String telemetryGroup = null;
+		String controlSocket = null;
+		String heartbeatFile = null;
+		String environment = null;
+		String outputFile = null;
+		String captureMode = null;
+		String capturePatterns = null;
+		int telemetryPort = 0;
 		
 		try {
 			Scanner scanner = new Scanner(new File(configPath));
 
 			while (scanner.hasNextLine()) {
-				String[] lineParam = scanner.nextLine().split("=");
+				String[] lineParam = scanner.nextLine().split("=", 2);
 				if(lineParam[0].equals("psfPath")) {
 					psfPath = lineParam[1];
 				}else if(lineParam[0].equals("libFolder")) {
@@ -89,10 +168,32 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 					udpPort = Integer.parseInt(lineParam[1]);
 				}else if(lineParam[0].equals("options")) {
 					options = lineParam[1];
+				}else if(lineParam[0].equals("vmOptions")) {
+					vmOptions = lineParam[1];
 				}else if(lineParam[0].equals("MsMem")) {
 					MsMem = Integer.valueOf(lineParam[1]);
 				}else if(lineParam[0].equals("MxMem")) {
 					MxMem = Integer.valueOf(lineParam[1]);
+				}else if(lineParam[0].equals("phiDeadThreshold")) {
+					phiDead = Double.valueOf(lineParam[1]);
+				}else if(lineParam[0].equals("phiStallThreshold")) {
+					phiStall = Double.valueOf(lineParam[1]);
+				}else if(lineParam[0].equals("heartbeatFile")) {
+					heartbeatFile = lineParam[1];
+				}else if(lineParam[0].equals("controlSocket")) {
+					controlSocket = lineParam[1];
+				}else if(lineParam[0].equals("environment")) {
+					environment = lineParam[1];
+				}else if(lineParam[0].equals("outputFile")) {
+					outputFile = lineParam[1];
+				}else if(lineParam[0].equals("captureMode")) {
+					captureMode = lineParam[1];
+				}else if(lineParam[0].equals("capturePatterns")) {
+					capturePatterns = lineParam[1];
+				}else if(lineParam[0].equals("telemetryGroup")) {
+					telemetryGroup = lineParam[1];
+				}else if(lineParam[0].equals("telemetryPort")) {
+					telemetryPort = Integer.parseInt(lineParam[1]);
 				}
 			}
 
@@ -121,7 +222,40 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 		dogParams.setMsMemory(MsMem);
 		dogParams.setMxMemory(MxMem);
 		dogParams.setOtherOptions(options);
+		if (vmOptions != null) {
+			dogParams.setOtherVMOptions(vmOptions);
+		}
 		dogParams.setJre("java");
+		// optional, zero gives the defaults
+		dogParams.setPhiDeadThreshold(phiDead);
+		dogParams.setPhiStallThreshold(phiStall);
+		// optional, control commands go over UDP if not given
+		dogParams.setControlSocket(controlSocket);
+		dogParams.setHeartbeatFile(heartbeatFile);
+		// optional, PAMGuard gets the dog's environment and output is logged if not given
+		dogParams.setLaunchEnvironment(environment);
+		dogParams.setOutputFile(outputFile);
+		if (captureMode != null) {
+			try {
+				dogParams.setCaptureMode(CaptureMode.valueOf(captureMode.trim().toUpperCase()));
+			}
+			catch (IllegalArgumentException e) {
+				System.out.println("Unknown captureMode " + captureMode + ", should be one of LINES, REDIRECT or PUMP");
+			}
+		}
+		else {
+			// an output file on it's own means redirect to it. 
+			dogParams.setCaptureMode(outputFile != null ? CaptureMode.REDIRECT : CaptureMode.LINES);
+		}
+		dogParams.setCapturePatterns(capturePatterns);
+		// optional, telemetry is only sent if one of these is given
+		if (telemetryGroup != null || telemetryPort != 0) {
+			dogParams.setTelemetryGroup(telemetryGroup);
+			if (telemetryPort != 0) {
+				dogParams.setUdpPortErrors(telemetryPort);
+			}
+			dogParams.setBroadcastErrors(true);
+		}
 		
 	}
 
@@ -141,115 +275,64 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 	}
 
 	/**
-	 * Turns on/off the UDP command broadcast, depending on the current parameters
+	 * Turns on/off the UDP command and status telemetry, depending on the current parameters
 	 */
 	private void setBroadcast() {
+		TelemetryPublisher oldTelemetry = telemetry;
+		telemetry = null;
+		commandLog.setPublisher(null);
+		if (oldTelemetry != null) {
+			oldTelemetry.close();
+		}
 		// if we are broadcasting the errors/commands, tell commandLog
-		if (dogParams.isBroadcastErrors()) {
-			commandLog.setupBroadcast(dogParams.getUdpPortErrors());
-		} else {
-			commandLog.stopBroadcasting();
+		if (dogParams.isBroadcastErrors() == false) {
+			return;
+		}
+		try {
+			TelemetryPublisher newTelemetry = new TelemetryPublisher(dogParams.getTelemetryGroup(), 
+					dogParams.getUdpPortErrors());
+			commandLog.setPublisher(newTelemetry);
+			telemetry = newTelemetry;
+			commandLog.logItem("Beginning PamDog telemetry to " + newTelemetry.getTarget());
+		} catch (IOException e) {
+			commandLog.logItem("Error: Unable to start PamDog telemetry: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Publish a status event on the telemetry stream, if it's enabled. 
+	 * @param status status text
+	 */
+	void publishStatus(String status) {
+		TelemetryPublisher t = telemetry;
+		if (t != null) {
+			t.publish(TelemetryPublisher.STATUS, System.currentTimeMillis(), status);
 		}
 	}
 
-	@Override
-	protected Integer doInBackground() throws Exception {
-		
-		int stallCount = 0;
-		
-		int majorErrorCount = 0;
-		
-		int startFailures = 0;
-		
-		boolean wasRunning = false;
+	/**
+	 * Supervise PAMGuard. This blocks until the dog is told to quit. 
+	 */
+	public void run() {
 		
-		while (keepRunning) {
-			// always start with a little rest !
-			sleep(1000);
-
-			if (dogParams.isActiveDog() == false ||
-					System.currentTimeMillis()-controlStart < dogParams.getStartWait() * 1000) {
-				//				idleFunction.launchPamguard();
-				sleep(1000);
-				continue;
-			}
-			
-
-			// ask twice if it was running lat loop through this function. 
-			int tries = wasRunning ? 5 : 1;
-			int timeout = wasRunning ? 5000 : 1000;
-			if (isRunning(tries, timeout) == false) {
-				if (shouldLaunch()) {
-					// kill old one first - could be because UDP is not responding. 
-					commandLog.logItem("In call from isRunning() == false and shouldLaunch() == true");
-					killPamguard();
-					launchPamguard(5000);
-				}
-				
-				continue;
-			}
-			
-			wasRunning = true;
-
-			int status = getStatus();
-			switch (status) {
-			case UdpCommands.PAM_IDLE:
-				if (shouldStart()) {
-					stopPamguard(5000);
-					if (startPamguard(20000) == false) {
-						startFailures++;
-					}
-					else {
-						startFailures = 0;
-					};
-				}
-				if (startFailures >= 5) {
-					majorErrorCount++;
-					dogParams.addRestart(new RestartInfo(RestartType.RESTARTPAMGUARD, "PAMGuard won't start running"));
-					commandLog.logItem("In startFailures >= 5");
-					killPamguard();			
-					/**
-					 * Consider a total restart of the PC if the number of times the process has had to 
-					 * be killed is high. 
-					 */
-					if (condsiderRestart()) {
-						if (restartPC()) {
-							continue;
-						}
-					}
-				}
-				continue;
-			case UdpCommands.PAM_STALLED:
-				if (++stallCount > 10) {
-					stallCount = 0;
-					if (++majorErrorCount > 10) {
-						majorErrorAction(majorErrorCount);
-					}
-					dogParams.addRestart(new RestartInfo(RestartType.RESTARTPAMGUARD, "PAMGuard Stalled"));
-					commandLog.logItem("Because UdpCommands.PAM_STALLED");	
-					killPamguard();		
-					/**
-					 * Consider a total restart of the PC if the number of times the process has had to 
-					 * be killed is high. 
-					 */
-					if (condsiderRestart()) {
-						if (restartPC()) {
-							continue;
-						}
-					}
-				}
-				break;
-			case UdpCommands.PAM_RUNNING:
-				stallCount = 0;
-				majorErrorCount = 0;
-				startFailures = 0;
-				break;
-			}
-		}
+		/*
+		 * All the supervision now happens in the supervisor, driven by timers, 
+		 * probe replies and the process ending, so just wait for it to finish. 
+		 */
+		supervisor.start();
+		supervisor.awaitFinished();
 		
+		outputCapture.shutdown();
 		commandLog.closeFile();
-
-		return null;
+		idleFunction.destroy();
+	}
+	
+	/**
+	 * @return true if the dog hasn't been going for long enough to start 
+	 * supervising PAMGuard
+	 */
+	boolean isInStartWait() {
+		return System.currentTimeMillis()-controlStart < dogParams.getStartWait() * 1000;
 	}
 	
 	/**
@@ -258,13 +341,12 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 	 * If however, it's already restarted 5 times in 2 hours, then give up. 
 	 * @return true if it's worth a restart
 	 */
-	private boolean condsiderRestart() {
-		long now = System.currentTimeMillis();
-		int killCount = dogParams.getRestartCount(RestartType.RESTARTPAMGUARD, now - 600000);
+	boolean condsiderRestart() {
+		int killCount = eventCounters.count(RestartType.RESTARTPAMGUARD, 600000);
 		if (killCount < 5) {
 			return false;
 		}
-		int pcStartCount = dogParams.getRestartCount(RestartType.RESTARTPC, now - 3600*1000*2);
+		int pcStartCount = eventCounters.count(RestartType.RESTARTPC, 3600*1000*2);
 		if (pcStartCount > 5) {
 			return false;
 		}
@@ -276,7 +358,7 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 	 * PAMguard 10 times - basically, consider rebooting !
 	 * @param majorErrorCount
 	 */
-	private void majorErrorAction(int majorErrorCount) {
+	void majorErrorAction(int majorErrorCount) {
 //		Runtime.getRuntime().
 		
 	}
@@ -333,9 +415,9 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 	 * minute
 	 * @return 
 	 */
-	private boolean shouldLaunch() {
+	boolean shouldLaunch() {
 
-		int nTries = commandLog.countLogsStarting("Launch", 10);
+		int nTries = eventCounters.count(SupervisionEvent.LAUNCH, 10000);
 		return nTries == 0;
 	}
 
@@ -344,82 +426,238 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 	 * it hasn't been attempted in the last 10 seconds. 
 	 * @return
 	 */
-	private boolean shouldStart() {
-		int nStarts = commandLog.countLogsStarting("Start", 10);
+	boolean shouldStart() {
+		int nStarts = eventCounters.count(SupervisionEvent.START, 10000);
 		return nStarts == 0;
 	}
 	
 	/**
-	 * Check to see fi the software is running, trying a number of times. 
-	 * @param nTries number of times to ping PAMgaurd
-	 * @param pingTimeout timout for each ping. 
-	 * @return true if any return true. 
+	 * Record a restart, both in the parameters so it's remembered if the 
+	 * PC restarts and in the counters used to decide what to do next. 
+	 * @param restartInfo restart
 	 */
-	public boolean isRunning(int nTries, int pingTimeout) {
-		for (int i = 0; i < nTries; i++) {
-			if (isRunning(pingTimeout)) {
-				return true;
+	void addRestart(RestartInfo restartInfo) {
+		dogParams.addRestart(restartInfo);
+		eventCounters.add(restartInfo);
+	}
+	
+	/**
+	 * Record a supervision event for rate limiting
+	 * @param event event type
+	 */
+	void addEvent(SupervisionEvent event) {
+		eventCounters.add(event);
+	}
+	
+	/**
+	 * Find out if PAMGuard is there, what it's status is and every SUMMARYPROBES probes
+	 * get it's summary, in a single exchange. The status and summary commands go out 
+	 * together and a reply to either of them shows that PAMGuard is alive, so no separate
+	 * ping is needed. Whichever reply comes back first is the one heartbeat the probe gives
+	 * the liveness detector, so that two replies a moment apart don't skew it. <p>
+	 * Older PAMGuard builds don't answer the summary command, in which case it gets 
+	 * dropped and only status is sent. If status doesn't come back either, this falls back
+	 * to the old ping to tell a PAMGuard that has gone from one that isn't answering status. 
+	 * @return future which completes with the probe result. It never completes 
+	 * exceptionally, failures just give a result which isn't alive. 
+	 */
+	public CompletableFuture<ProbeResult> probeAsync() {
+		ProbeResult heartbeat = heartbeatProbe();
+		if (heartbeat != null) {
+			lastProbe = heartbeat;
+			return CompletableFuture.completedFuture(heartbeat);
+		}
+		int timeout = transport.getTimeout();
+		AtomicBoolean replied = new AtomicBoolean();
+		CompletableFuture<String> statusReply = transport.sendCommandAsync(UdpCommands.STATUS, timeout)
+				.handle((ans, e) -> heartbeat(ans, replied));
+		CompletableFuture<String> summaryReply;
+		// summary may never be answered, which not every transport can cope with.
+		boolean summarySent = summarySupported && transport.allowsUnansweredCommands() && 
+				probeCount.getAndIncrement() % SUMMARYPROBES == 0;
+		if (summarySent) {
+			summaryReply = transport.sendCommandAsync(UdpCommands.SUMMARY, timeout)
+					.handle((ans, e) -> heartbeat(ans, replied));
+		}
+		else {
+			summaryReply = CompletableFuture.completedFuture(null);
+		}
+		return statusReply.thenCombine(summaryReply, (statusAns, summary) -> {
+			if (statusAns == null) {
+				commandLog.logItem("Status Error: " + transport.getLastError());
+				if (summary != null) {
+					return CompletableFuture.completedFuture(new ProbeResult(true, -1, summary));
+				}
+				return pingAsync(timeout).thenApply(alive -> new ProbeResult(alive, -1, null));
+			}
+			if (summarySent && summary == null && summaryMisses.incrementAndGet() >= 3) {
+				summarySupported = false;
+				commandLog.logItem("No reply to summary command, probing with status only");
+			}
+			else if (summary != null) {
+				summaryMisses.set(0);
 			}
-			sleep(5000);	// wait 5 seconds between ping attempts, just in case			
+			return CompletableFuture.completedFuture(new ProbeResult(true, parseStatus(statusAns), summary));
+		}).thenCompose(result -> result).thenApply(result -> {
+			lastProbe = result;
+			return result;
+		});
+	}
+	
+	/**
+	 * Give the liveness detector a heartbeat for the first reply to a probe. 
+	 * @param ans reply, null if there wasn't one
+	 * @param replied set once the probe has had a reply
+	 * @return the reply
+	 */
+	private String heartbeat(String ans, AtomicBoolean replied) {
+		if (ans != null && replied.compareAndSet(false, true)) {
+			transport.getLivenessDetector().heartbeat();
 		}
-		return false;
+		return ans;
 	}
-
 	
 	/**
-	 * 
-	 * @return true if the program is running. (not necessarily
-	 * doing anything, but there is a program there that we can ping).
+	 * Probe PAMGuard by reading the heartbeat page. 
+	 * @return probe result, or null if there's no heartbeat page or PAMGuard hasn't 
+	 * updated it recently, in which case it needs probing over UDP. 
 	 */
-	public boolean isRunning() {
-		return isRunning(1000);
+	private ProbeResult heartbeatProbe() {
+		HeartbeatPage page = heartbeatPage;
+		if (page == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (page.check(now)) {
+			transport.getLivenessDetector().heartbeat();
+		}
+		if (page.isFresh(now, HEARTBEATSTALE) == false) {
+			return null;
+		}
+		int status = page.getStatus();
+		if (status == UdpCommands.PAM_RUNNING) {
+			progressDetector.heartbeat();
+		}
+		return new ProbeResult(true, status, null);
 	}
+	
 	/**
-	 * 
-	 * @return true if the program is running. (not necessarily
-	 * doing anything, but there is a program there that we can ping).
+	 * @return true if there's a heartbeat page which PAMGuard has updated recently
 	 */
+	boolean isHeartbeatFresh() {
+		HeartbeatPage page = heartbeatPage;
+		return page != null && page.isFresh(System.currentTimeMillis(), HEARTBEATSTALE);
+	}
 	
-	public boolean isRunning(int pingTimeout) {
-		String ans = dogUDP.sendCommand(UdpCommands.PING, pingTimeout);
-		if (ans == null) {
-//			publish(new ControlMessage("Ping Error from isRunning(): " + dogUDP.getLastError()));
-			commandLog.logItem("Ping Error from isRunning(): " + dogUDP.getLastError());
-		}
-		if (ans!=null && !ans.equals(UdpCommands.PING)) {
-//			publish(new ControlMessage("False response from Ping; getting " + ans + " instead"));
-			commandLog.logItem("False response from Ping; getting " + ans + " instead");
+	/**
+	 * Create or clear the heartbeat page ready for a new PAMGuard instance, 
+	 * or drop it if it's no longer wanted. 
+	 */
+	private void setupHeartbeat() {
+		String file = dogParams.getHeartbeatFile();
+		if (file == null || file.isBlank()) {
+			heartbeatPage = null;
+			return;
 		}
-		if (!(ans != null && ans.equals(UdpCommands.PING))) {
-			commandLog.logItem("Just failed isRunning check, ans = " + ans);
+		HeartbeatPage page = heartbeatPage;
+		try {
+			if (page == null || page.getPath().equals(Path.of(file)) == false) {
+				heartbeatPage = new HeartbeatPage(Path.of(file));
+			}
+			else {
+				page.reset();
+			}
+		} catch (IOException e) {
+			commandLog.logItem("Unable to create heartbeat file %s: %s", file, e.getMessage());
+			heartbeatPage = null;
 		}
-		return (ans != null && ans.equals(UdpCommands.PING));
 	}
 	
 	/**
-	 * check to see if PAMguard has finished initialising
-	 * it's unwise to tray to start it until this process has completed. 
-	 * @return true if it's initialised. 
+	 * Ping PAMGuard without waiting for the reply, when a probe hasn't had a reply
+	 * to status. A reply is the probe's heartbeat. 
+	 * @param pingTimeout timeout in milliseconds
+	 * @return future which completes true if PAMGuard replied correctly. 
 	 */
-	public boolean isInitialised() {
-		int status = getStatus();
-		return status >= 0 && getStatus() != UdpCommands.PAM_INITIALISING;
+	private CompletableFuture<Boolean> pingAsync(int pingTimeout) {
+		return transport.sendCommandAsync(UdpCommands.PING, pingTimeout).handle((ans, e) -> {
+			if (ans == null) {
+				commandLog.logItem("Ping Error from probe: " + (e == null ? null : e.getMessage()) + 
+						", late replies so far " + transport.getLateReplyCount() + ", " + transport.getRttEstimator());
+			}
+			else {
+				transport.getLivenessDetector().heartbeat();
+				if (!ans.equals(UdpCommands.PING)) {
+					commandLog.logItem("False response from Ping; getting " + ans + " instead");
+				}
+			}
+			return ans != null && ans.equals(UdpCommands.PING);
+		});
+	}
+	
+	/**
+	 * @return suspicion level that PAMGuard has died, from the time since it last replied
+	 */
+	public double getSuspicionLevel() {
+		return transport.getLivenessDetector().phi();
+	}
+	
+	/**
+	 * @return capture of PAMGuard's output, with the rates it's being read at
+	 */
+	public OutputCapture getOutputCapture() {
+		return outputCapture;
+	}
+	
+	/**
+	 * @return suspicion level that PAMGuard has stalled, from the time since it last 
+	 * reported that it was running
+	 */
+	public double getStallSuspicionLevel() {
+		return progressDetector.phi();
+	}
+	
+	/**
+	 * @return detector fed each time PAMGuard reports that it's running
+	 */
+	PhiAccrualDetector getProgressDetector() {
+		return progressDetector;
+	}
+	
+	/**
+	 * @return the supervisor
+	 */
+	public DogSupervisor getSupervisor() {
+		return supervisor;
+	}
+	
+	/**
+	 * @return the most recent probe result, or null
+	 */
+	public ProbeResult getLastProbe() {
+		return lastProbe;
 	}
 
-	public int getStatus() {
+	/**
+	 * Get the status out of a reply to the status command. 
+	 * @param ans reply string
+	 * @return status, or -1 if it can't be read
+	 */
+	private int parseStatus(String ans) {
 		/**
 		 * Returned strings are in the form "status 1", etc.
 		 */
-		String ans = dogUDP.sendCommand(UdpCommands.STATUS, 1000);
-		if (ans == null || ans.length() < 8) {
-//			publish(new ControlMessage("Status Error: " + dogUDP.getLastError()));
-			commandLog.logItem("Status Error: " + dogUDP.getLastError());
+		if (ans.length() < 8) {
+			commandLog.logItem("Unknown Status " + ans);
 			return -1;
 		}
 		int status = -1;
 		String statNum = ans.substring(7);
 		try {
 			status = Integer.valueOf(statNum);
+			if (status == UdpCommands.PAM_RUNNING) {
+				progressDetector.heartbeat();
+			}
 //			commandLog.logItem("Status Check returned: " + ans);
 		}
 		catch (NumberFormatException e) {
@@ -446,7 +684,7 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 			commandLog.logItem("System restart required but not enabled.");
 			return false;
 		}
-		dogParams.addRestart(new RestartInfo(RestartType.RESTARTPC, "Restart PC"));
+		addRestart(new RestartInfo(RestartType.RESTARTPC, "Restart PC"));
 		dogParams.setLastRestartTime(System.currentTimeMillis());
 		// since the PC is about to be restarted, force immediate saving of the params
 		configSettings.saveConfig(dogParams);
@@ -473,224 +711,182 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 		return true;
 	}
 
-	private boolean launchPamguard(long waitTime) {
-		int freePort = DogUDP.findFreePort(dogParams.getUdpPort(), dogParams.getUdpPort()+10);
-		System.out.println("Free UDP port id is " + freePort);
-		if (freePort <= 0) {
+	/**
+	 * Launch PAMGuard. This doesn't wait for it to initialise, the supervisor 
+	 * keeps probing until it has. 
+	 * @return true if the process was launched. 
+	 */
+	boolean launchPamguard() {
+		addEvent(SupervisionEvent.LAUNCH);
+		PortReservation portReservation;
+		try {
+			portReservation = PortReservation.reserve(dogParams.getUdpPort());
+		} catch (IOException e) {
 			commandLog.logItem("Launch Failed: Unable to find free UDP port for comms");
 			return false;
 		}
-//		dogUDP.setCurrentUdpPort(freePort);
+		int freePort = portReservation.getPort();
+		if (portReservation.isPreferred() == false) {
+			commandLog.logItem("UDP port %d in use, launching PAMGuard on port %d", 
+					dogParams.getUdpPort(), freePort);
+		}
+		idleFunction.getDogUDP().setCurrentUdpPort(freePort);
+		// new PAMGuard instance, so old round trip times don't apply
+		transport.getRttEstimator().reset();
+		transport.getLivenessDetector().reset();
+		progressDetector.reset();
+		summarySupported = true;
+		summaryMisses.set(0);
+		probeCount.set(0);
+		setupHeartbeat();
 		String commandLine = idleFunction.createLaunchString(dogParams, freePort);
+		ProcessBuilder builder = createProcessBuilder(freePort);
+		exitExpected = false;
+		// let go of the port at the last moment so that PAMGuard can bind it
+		portReservation.release();
 		try {
-			if(System.getProperty("os.name").startsWith("Linux")) {
-				String[] linuxCommands = {"/bin/sh","-c", commandLine};
-				process = Runtime.getRuntime().exec(linuxCommands, null, new File(dogParams.getWorkingFolder()));
-			}else {
-				process = Runtime.getRuntime().exec(commandLine, null, new File(dogParams.getWorkingFolder()));
-			}
+			process = builder.start();
 		} catch (IOException e) {
 			e.printStackTrace();
-			commandLog.logItem("Launch Failed: " + commandLine);
+			commandLog.logItem("Launch Failed: " + commandLine + ", " + e.getMessage());
 			return false;
 		}
 		if (process != null) {
+			final Process launched = process;
+			processKiller.track(launched);
+			launched.onExit().thenAccept(p -> processEnded(p));
 			/*
-			 * Launch threads to capture the output and errors from PAMguard 
+			 * Capture the output and errors from PAMguard, cancelling the readers
+			 * left over from the last launch. 
 			 */
-			LogCaptureThread logThread = new LogCaptureThread(idleFunction, process, false);
-			LogCaptureThread errThread = new LogCaptureThread(idleFunction, process, true);
-			logThread.execute();
-			errThread.execute();
+			outputCapture.startCapture(process, dogParams);
 		}
 		commandLog.logItem("Launch Ok: " + commandLine);
 		commandLog.logItem("Process Name: " + process.toString());
-		long now = System.currentTimeMillis();
-		boolean isRunning = isRunning();
-		boolean isInitialised = isInitialised();
-		/*
-		 * First wait for isRunning, 
-		 * then wait for isInitialised. 
-		 */
-		while (isRunning == false || isInitialised == false) {
-			long t = System.currentTimeMillis() - now;
-			if (t > waitTime) {
-				commandLog.logItem("Error starting PAMGuard after %3.1fs: isRunning is %s, Initialised is %s", 
-						(double) t / 1000., Boolean.toString(isRunning), Boolean.toString(isInitialised));
-				break;
-			}
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-//			System.out.println("Waiting for isInitialised()");
-			isRunning = isRunning();
-			isInitialised = isInitialised();
-		}
-		isRunning = isRunning();
-		isInitialised = isInitialised();
-		boolean ok = isRunning & isInitialised;
-		long t = System.currentTimeMillis() - now;
-		commandLog.logItem("PAMGuard launch %s after %3.1fs: isRunning is %s, Initialised is %s", 
-				ok ? "OK" : "Problem", (double) t / 1000., 
-						Boolean.toString(isRunning), Boolean.toString(isInitialised));
-		return isRunning && isInitialised;
+		return true;
 	}
 
 	/**
-	 * Kill PAMguard. Tell it once to stop, then exit anyway. 
+	 * Set up the launch of PAMGuard. The java executable is run directly with an 
+	 * argument list, no shell, so the process launched is PAMGuard itself. 
+	 * PAMGuard gets the dog's environment without the variables which would 
+	 * override the memory and other settings given on the command line, plus any
+	 * extra ones from the parameters. In REDIRECT capture mode output and errors 
+	 * are appended to file by the OS instead of being read by the dog, and in
+	 * PUMP mode errors are merged into output so there's only one stream to copy.
+	 * @param port UDP port for PAMGuard to listen for commands on
+	 * @return process builder ready to start
 	 */
-	protected void killPamguard() {
-		commandLog.logItem("Kill Pamguard");
-		stopPamguard(2000);
-		String ans = dogUDP.sendCommand(UdpCommands.EXIT, 1000);
-		if (ans != null) {
-			
-			// publish the message
-//			publish(new ControlMessage("Kill command returned message: " + dogUDP.getLastError()));
-			commandLog.logItem("Kill command returned message: " + dogUDP.getLastError());
-			
-			// give it a few seconds to exit by itself, 
-			// then kill it anyway. 
-			for (int i = 0; i < 10; i++) {
-				if (dogUDP.sendCommand(UdpCommands.PING, 100) == null) {
-					break;
-				}
-				// still there, so sleep and try again. 
-				try {
-					Thread.sleep(500);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+	private ProcessBuilder createProcessBuilder(int port) {
+		ProcessBuilder builder = new ProcessBuilder(idleFunction.createLaunchCommand(dogParams, port));
+		if (dogParams.getWorkingFolder() != null) {
+			builder.directory(new File(dogParams.getWorkingFolder()));
+		}
+		Map<String, String> env = builder.environment();
+		for (String name:JAVAENVIRONMENT) {
+			if (env.remove(name) != null) {
+				commandLog.logItem("Environment variable %s not passed to PAMGuard", name);
 			}
 		}
-		
-		// if ans was null, there was an error with the commmand
-		else {
-//			publish(new ControlMessage("Kill command returned error: " + dogUDP.getLastError()));
-			commandLog.logItem("Kill command returned error: " + dogUDP.getLastError());
-		}
-		synchronized (processSynch) {
-			if (process == null) {
-				commandLog.logItem("Pamguard Shut Down");
-				return;
+		String extra = dogParams.getLaunchEnvironment();
+		if (extra != null) {
+			for (String pair:extra.split(";")) {
+				String[] nameValue = pair.split("=", 2);
+				if (nameValue.length == 2 && nameValue[0].isBlank() == false) {
+					env.put(nameValue[0].trim(), nameValue[1]);
+				}
 			}
-			commandLog.logItem("Force Close");
-			process.destroy();
-			boolean reallyKilled=false;
-			try {
-				reallyKilled = process.waitFor(5000, TimeUnit.MILLISECONDS);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		}
+		switch (dogParams.getCaptureMode()) {
+		case REDIRECT:
+			String outputFile = dogParams.getOutputFile();
+			File file;
+			if (outputFile != null && outputFile.isBlank() == false) {
+				file = new File(outputFile);
 			}
-			if (!reallyKilled) {
-				commandLog.logItem("Error - process may still be active");
-				this.extremeKill();
+			else {
+				file = DogLog.getDailyFile(OutputPump.FILETITLE, System.currentTimeMillis());
 			}
-			process = null;
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(ProcessBuilder.Redirect.appendTo(file));
+			break;
+		case PUMP:
+			builder.redirectErrorStream(true);
+			break;
+		default:
+			break;
 		}
+		return builder;
 	}
 
 	/**
-	 * Start PAMguard and wait up to waitTime milliseconds for
-	 * it to report that it is actually running. 
-	 * @param waitTime MAx time to wait for it to be running
-	 * @return true if it's in STATUS_RUNNING
+	 * Kill PAMguard. Tell it to stop and exit, then destroy it and everything 
+	 * it started if it doesn't go quickly. 
 	 */
-	private boolean startPamguard(long waitTime) {
-		String ans = dogUDP.sendCommand(UdpCommands.START, 1000);
-		dogParams.addRestart(new RestartInfo(RestartType.RESTARTRUN, "Sart PAMGuard"));
-		long now = System.currentTimeMillis();
-		int curState;
-		while ((curState=getStatus()) != UdpCommands.PAM_RUNNING && 
-				System.currentTimeMillis() - now < waitTime) {
-			System.out.printf("Dog status after %3.1f s = %d\n", (System.currentTimeMillis() - now)/1000., curState);
-			sleep(500);
-		}
-		if (curState == UdpCommands.PAM_RUNNING) {
-			commandLog.logItem("Start Ok");
-			return true;
-		}
-		else {
-			commandLog.logItem("Start Failed status " + curState);
-			return false;
+	protected void killPamguard() {
+		commandLog.logItem("Kill Pamguard");
+		exitExpected = true;
+		long start = System.currentTimeMillis();
+		boolean killed = processKiller.kill(transport);
+		synchronized (processSynch) {
+			process = null;
 		}
+		commandLog.logItem("Pamguard %s after %3.1fs", killed ? "Shut Down" : "may still be active", 
+				(double) (System.currentTimeMillis() - start) / 1000.);
 	}
 	
 	/**
-	 * Stop PAMguard and wait up to waitTime milliseconds for
-	 * it to report that it is actually running. 
-	 * @param waitTime MAx time to wait for it to be running
-	 * @return true if it's in STATUS_RUNNING
+	 * Pick up everything PAMGuard has started, so it can all be killed. 
 	 */
-	private boolean stopPamguard(long waitTime) {
-		String ans = dogUDP.sendCommand(UdpCommands.STOP, 1000);
-		long now = System.currentTimeMillis();
-		int curState;
-		while ((curState=getStatus()) != UdpCommands.PAM_IDLE && 
-				System.currentTimeMillis() - now < waitTime) {
-			sleep(500);
-		}
-		if (curState == UdpCommands.PAM_IDLE) {
-			commandLog.logItem("Stop Ok");
-			return true;
-		}
-		else {
-			commandLog.logItem("Stop Failed status " + curState);
-			return false;
-		}
-	}
-
-	private void sleep(long millis) {
-		try {
-			Thread.sleep(millis);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
-
+	void trackProcessTree() {
+		processKiller.refresh();
 	}
 
-	/* (non-Javadoc)
-	 * @see javax.swing.SwingWorker#done()
+	/**
+	 * Tell PAMGuard to stop, then start. Doesn't wait for it to report 
+	 * that it's running, the supervisor keeps probing until it does or 
+	 * gives up. 
 	 */
-	@Override
-	protected void done() {
-		idleFunction.destroy();
+	void sendStart() {
+		commandLog.logItem("Starting PAMGuard");
+		addEvent(SupervisionEvent.START);
+		transport.sendCommandAsync(UdpCommands.STOP, 1000).handle((ans, e) -> 
+			transport.sendCommandAsync(UdpCommands.START, 1000));
+		addRestart(new RestartInfo(RestartType.RESTARTRUN, "Sart PAMGuard"));
 	}
-
-	/* (non-Javadoc)
-	 * @see javax.swing.SwingWorker#process(java.util.List)
+	
+	/**
+	 * Called as soon as the PAMGuard process ends. If it wasn't killed or told to 
+	 * exit, tells the supervisor so that it can be relaunched straight away. 
+	 * @param endedProcess the process which ended
 	 */
-	@Override
-	protected void process(List<ControlMessage> chunks) {
-		for (ControlMessage msg:chunks) {
-			idleFunction.controlMessage(msg);
-			commandLog.logItem(msg.msg);
-		}
-	}
-
-	public void processEnded() {
+	public void processEnded(Process endedProcess) {
 		synchronized (processSynch) {
-			process = null;			
+			if (process != endedProcess) {
+				// an old process, which has already been dealt with
+				return;
+			}
+			process = null;
+			if (exitExpected) {
+				commandLog.logItem("PAMGuard process ended, exit code %d", endedProcess.exitValue());
+				return;
+			}
+			commandLog.logItem("PAMGuard process ended unexpectedly, exit code %d", endedProcess.exitValue());
+			// it's definitely gone, so no need for the failure detector to build up suspicion
+			transport.getLivenessDetector().reset();
 		}
+		supervisor.processEnded();
 	}
-
+	
 	public void quitDog() {
 		keepRunning = false;	
+		exitExpected = true;
+		supervisor.wake();
 //		if (process != null) {
 //			process.destroy();
 //		}
 	}
 
-	public void configure() {
-		DogParams newParams = DogDialog.showDialog(dogParams, this);
-		if (newParams != null) {
-			setParams(newParams);
-		}
-	}
-
 	/**
 	 * Called directly from the dialog when the activate checkbox is changed
 	 * @param isActive
@@ -702,6 +898,9 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 //			}
 //		}
 		dogParams.setActiveDog(isActive);		
+		if (supervisor != null) {
+			supervisor.wake();
+		}
 		return isActive;
 	}
 
@@ -713,61 +912,15 @@ public class DogControl extends SwingWorker<Integer, ControlMessage> {
 	public void setNewParams(DogParams dogParams) {
 		setParams(dogParams);
 		setBroadcast();
+		supervisor.wake();
 	}
 	
 	
-	/**
-	 * Try to forcefully kill the Pamguard process.  Need to get a list of all java processes currently running,
-	 * and look for the dummy keyword AutoPamguard.  Once found, parse the PID from the line and perform
-	 * a taskkill.  This requires the java program jps.exe, which is typically distributed with the jdk (and not
-	 * necessarily with the jre).
-	 * 
-	 * @return true is successful, false otherwise
-	 */
-	public boolean extremeKill() {
-		File javaEXE = new File(dogParams.getJre());
-		String javaPath = javaEXE.getParent();
-		File jpsEXE = new File(javaPath,"jps.exe");
-		if (jpsEXE.exists()) {
-			String commandLine = String.format("\"%s\" -v", jpsEXE.getAbsolutePath());
-			Process p;
-			try {
-				p = Runtime.getRuntime().exec(commandLine);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return false;
-			}
-			BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			try {
-				String line;
-				while ((line = reader.readLine()) != null) {
-					commandLog.logItem("***Java Process Found = " + line);
-					if (line.contains("AutoPamguard")) {
-						String PID = line.substring(0, line.indexOf(" ")); 
-						commandLog.logItem("***Killing Task PID = " + PID);
-						Runtime.getRuntime().exec("taskkill /F /PID " + Long.parseLong(PID));
-					}
-				}
-			} catch (NumberFormatException e) {
-				e.printStackTrace();
-				return false;
-			} catch (IOException e) {
-				e.printStackTrace();
-				return false;
-			}
-			return true;
-		}
-		else {
-			commandLog.logItem("Error cannot find " + jpsEXE.getAbsolutePath());
-			commandLog.logItem("jps.exe is distributed with the Java JDK and not JRE.  Try pointing the PamDog params to a java.exe within a JDK"); 
-		}
-		return false;
-	}
-
 	public void setParams(DogParams newParams) {
 		dogParams = newParams;
 		getConfigSettings().saveConfig(dogParams);
 		idleFunction.configure();
+		transport = idleFunction.getTransport();
 	}
 	
 	public DogParams getParams() {
@@ -2,6 +2,7 @@ package pamdog;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.ListIterator;
 
 import pamdog.RestartInfo.RestartType;
@@ -26,6 +27,38 @@ public class DogParams implements Serializable, Cloneable {
 	private int udpPort = 8000;
 	private boolean broadcastErrors = false;
 	private int udpPortErrors = 8100;
+	/**
+	 * Multicast group for the telemetry stream, so that several programs can 
+	 * subscribe to it. If null or empty it's sent to udpPortErrors on this machine only. 
+	 */
+	private String telemetryGroup = null;
+	/**
+	 * Unix domain socket file to send control commands to instead of UDP, 
+	 * or null to use UDP. 
+	 */
+	private String controlSocket = null;
+	/**
+	 * Memory mapped file PAMGuard updates as it runs, or null not to use one.
+	 */
+	private String heartbeatFile = null;
+	/**
+	 * Extra environment variables for PAMGuard as NAME=value pairs separated by ;
+	 */
+	private String launchEnvironment = null;
+	/**
+	 * File PAMGuard's output and errors are appended to when they're redirected
+	 * or pumped, or null for the daily PAMGuard output files. 
+	 */
+	private String outputFile = null;
+	/**
+	 * How PAMGuard's output and errors are captured, null meaning LINES
+	 */
+	private CaptureMode captureMode = CaptureMode.LINES;
+	/**
+	 * When pumping output to file, lines containing any of these, separated by ;, 
+	 * still go into the PAMGuard log. 
+	 */
+	private String capturePatterns = null;
 	private String otherOptions = ""; //"-smru";
 	private String otherVMOptions = "";
 
@@ -39,6 +72,14 @@ public class DogParams implements Serializable, Cloneable {
 	private int minRestartMinutes = 60;
 	private long lastRestartTime = 0;
 	
+	/**
+	 * Suspicion levels (phi) from the failure detectors at which PAMGuard
+	 * is considered dead (no replies) or stalled (not running). 
+	 */
+	private double phiDeadThreshold = DEFAULTPHITHRESHOLD;
+	private double phiStallThreshold = DEFAULTPHITHRESHOLD;
+	static final double DEFAULTPHITHRESHOLD = 8;
+	
 	/**
 	 * now some status information, so that we can persistently keep a 
 	 * record of how often PAMGuard has been restarted and more importantly
@@ -152,6 +193,100 @@ public class DogParams implements Serializable, Cloneable {
 	public void setUdpPortErrors(int udpPortErrors) {
 		this.udpPortErrors = udpPortErrors;
 	}
+	/**
+	 * @return multicast group for the telemetry stream, or null
+	 */
+	public String getTelemetryGroup() {
+		return telemetryGroup;
+	}
+	/**
+	 * @param telemetryGroup multicast group for the telemetry stream, or null to 
+	 * send it to udpPortErrors on this machine only
+	 */
+	public void setTelemetryGroup(String telemetryGroup) {
+		this.telemetryGroup = telemetryGroup;
+	}
+	/**
+	 * @return Unix domain socket file to send control commands to, or null to use UDP. 
+	 * PAMGuard is launched with -controlsocket and this path so it knows where to listen. 
+	 */
+	public String getControlSocket() {
+		return controlSocket;
+	}
+	/**
+	 * @param controlSocket Unix domain socket file to send control commands to, 
+	 * or null to use UDP
+	 */
+	public void setControlSocket(String controlSocket) {
+		this.controlSocket = controlSocket;
+	}
+	/**
+	 * @return memory mapped heartbeat file shared with PAMGuard, or null
+	 */
+	public String getHeartbeatFile() {
+		return heartbeatFile;
+	}
+	/**
+	 * @param heartbeatFile memory mapped heartbeat file shared with PAMGuard, 
+	 * or null not to use one
+	 */
+	public void setHeartbeatFile(String heartbeatFile) {
+		this.heartbeatFile = heartbeatFile;
+	}
+	/**
+	 * @return extra environment variables for PAMGuard as NAME=value pairs separated by ;
+	 */
+	public String getLaunchEnvironment() {
+		return launchEnvironment;
+	}
+	/**
+	 * @param launchEnvironment extra environment variables for PAMGuard as 
+	 * NAME=value pairs separated by ;, or null for none
+	 */
+	public void setLaunchEnvironment(String launchEnvironment) {
+		this.launchEnvironment = launchEnvironment;
+	}
+	/**
+	 * @return file PAMGuard's output and errors are appended to, or null
+	 */
+	public String getOutputFile() {
+		return outputFile;
+	}
+	/**
+	 * @param outputFile file PAMGuard's output and errors are appended to when they're
+	 * redirected or pumped, or null for the daily PAMGuard output files
+	 */
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+	}
+	/**
+	 * @return how PAMGuard's output and errors are captured
+	 */
+	public CaptureMode getCaptureMode() {
+		if (captureMode == null) {
+			captureMode = CaptureMode.LINES;
+		}
+		return captureMode;
+	}
+	/**
+	 * @param captureMode how PAMGuard's output and errors are captured
+	 */
+	public void setCaptureMode(CaptureMode captureMode) {
+		this.captureMode = captureMode;
+	}
+	/**
+	 * @return patterns separated by ; for lines to log when pumping output to file
+	 */
+	public String getCapturePatterns() {
+		return capturePatterns;
+	}
+	/**
+	 * @param capturePatterns patterns separated by ; for lines which still go into 
+	 * the PAMGuard log when pumping output to file, or null for none
+	 */
+	public void setCapturePatterns(String capturePatterns) {
+		this.capturePatterns = capturePatterns;
+	}
 	/**
 	 * @return the activeDog
 	 */
@@ -268,6 +403,13 @@ public class DogParams implements Serializable, Cloneable {
 		}
 	}
 	
+	/**
+	 * @return stored restarts, oldest first. May be null. 
+	 */
+	public List<RestartInfo> getRestarts() {
+		return dogRestarts;
+	}
+	
 	/**
 	 * Get a count of restarts of a given type. 
 	 * @param restartType type of restart. 
@@ -330,6 +472,36 @@ public class DogParams implements Serializable, Cloneable {
 	public void setLastRestartTime(long lastRestartTime) {
 		this.lastRestartTime = lastRestartTime;
 	}
+	/**
+	 * @return suspicion level at which a PAMGuard that isn't replying is killed
+	 */
+	public double getPhiDeadThreshold() {
+		if (phiDeadThreshold <= 0) {
+			phiDeadThreshold = DEFAULTPHITHRESHOLD;
+		}
+		return phiDeadThreshold;
+	}
+	/**
+	 * @param phiDeadThreshold suspicion level at which a PAMGuard that isn't replying is killed
+	 */
+	public void setPhiDeadThreshold(double phiDeadThreshold) {
+		this.phiDeadThreshold = phiDeadThreshold;
+	}
+	/**
+	 * @return suspicion level at which a PAMGuard that has stopped running is killed
+	 */
+	public double getPhiStallThreshold() {
+		if (phiStallThreshold <= 0) {
+			phiStallThreshold = DEFAULTPHITHRESHOLD;
+		}
+		return phiStallThreshold;
+	}
+	/**
+	 * @param phiStallThreshold suspicion level at which a PAMGuard that has stopped running is killed
+	 */
+	public void setPhiStallThreshold(double phiStallThreshold) {
+		this.phiStallThreshold = phiStallThreshold;
+	}
 
 
 }
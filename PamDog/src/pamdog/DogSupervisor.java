@@ -0,0 +1,549 @@
+package pamdog;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import Logging.DogLog;
+import pamdog.RestartInfo.RestartType;
+
+/**
+ * State machine which keeps PAMGuard running. Everything happens on a single
+ * scheduler thread and is driven by events: timers, probe replies coming back and
+ * the PAMGuard process ending. Probes go out asynchronously, so a recovery action
+ * starts as soon as it's trigger fires rather than after the next fixed sleep.
+ * Killing PAMGuard can take several seconds, so it's done on a separate thread
+ * and the supervisor carries on when it's finished.
+ */
+public class DogSupervisor {
+
+	/**
+	 * Normal interval between probes
+	 */
+	private static final long PROBEINTERVAL = 1000;
+
+	/**
+	 * Interval between probes while waiting for something to happen, e.g. for
+	 * PAMGuard to initialise or start.
+	 */
+	private static final long FASTPROBEINTERVAL = 500;
+
+	/**
+	 * Interval between probes while running with a fresh heartbeat page, which
+	 * are just memory reads so can be much more frequent.
+	 */
+	private static final long HEARTBEATINTERVAL = 200;
+
+	/**
+	 * How long to wait for PAMGuard to reply and initialise after a launch
+	 * before logging an error.
+	 */
+	private static final long LAUNCHWAIT = 5000;
+
+	/**
+	 * How long to wait for PAMGuard to run after a start command.
+	 */
+	private static final long STARTWAIT = 20000;
+
+	private DogControl dogControl;
+
+	private DogLog commandLog;
+
+	private ScheduledExecutorService scheduler;
+
+	private ExecutorService killer;
+
+	private ScheduledFuture<?> nextProbe;
+
+	private volatile SupervisorState state = SupervisorState.INACTIVE;
+
+	private long stateTime = System.currentTimeMillis();
+
+	private boolean probeInFlight;
+
+	/**
+	 * Changed each time PAMGuard is killed or launched, so that a probe of the old
+	 * instance which comes back afterwards is ignored.
+	 */
+	private int probeGeneration;
+
+	/**
+	 * Set while a kill is running on the killer thread, which carries on to
+	 * onKilled whatever else happens in the meantime.
+	 */
+	private boolean killInProgress;
+
+	private CountDownLatch finished = new CountDownLatch(1);
+
+	private long launchTime;
+
+	private boolean launchErrorLogged;
+
+	private boolean startPending;
+
+	private long startDeadline;
+
+	private int stallCount;
+
+	private int majorErrorCount;
+
+	private int startFailures;
+
+	public DogSupervisor(DogControl dogControl, DogLog commandLog) {
+		this.dogControl = dogControl;
+		this.commandLog = commandLog;
+	}
+
+	/**
+	 * Start the scheduler and send the first probe.
+	 */
+	public void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("PamDog Supervisor"));
+		killer = Executors.newSingleThreadExecutor(daemonThreads("PamDog Killer"));
+		execute(() -> scheduleProbe(0));
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Wait until the supervisor has stopped, which happens once
+	 * the dog is told to quit.
+	 */
+	public void awaitFinished() {
+		try {
+			finished.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Probe PAMGuard now rather than at the next scheduled time, e.g.
+	 * after the parameters have changed or the dog has been told to quit.
+	 */
+	public void wake() {
+		execute(() -> scheduleProbe(0));
+	}
+
+	/**
+	 * Called when the PAMGuard process has ended without being told to.
+	 */
+	public void processEnded() {
+		execute(() -> onProcessEnded());
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public SupervisorState getState() {
+		return state;
+	}
+
+	private void execute(Runnable task) {
+		if (scheduler == null) {
+			// not started yet
+			return;
+		}
+		try {
+			scheduler.execute(() -> handle(task));
+		}
+		catch (RejectedExecutionException e) {
+			// already shut down.
+		}
+	}
+
+	private void setState(SupervisorState newState) {
+		if (newState == state) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		commandLog.logItem("Supervisor state %s -> %s after %3.1fs", state, newState,
+				(double) (now - stateTime) / 1000.);
+		state = newState;
+		stateTime = now;
+		dogControl.publishStatus("state=" + newState);
+	}
+
+	/**
+	 * Schedule the next probe, replacing any that's already scheduled.
+	 * @param delay delay in milliseconds
+	 */
+	private void scheduleProbe(long delay) {
+		if (nextProbe != null) {
+			nextProbe.cancel(false);
+		}
+		nextProbe = scheduler.schedule(() -> handle(() -> onTick()), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run a handler on the scheduler thread. Each handler schedules whatever comes
+	 * next, so if one throws, the error is logged and things are put back to where
+	 * the next tick can carry on from, rather than the supervisor stopping for good
+	 * or being stuck killing or rebooting. A kill which is still running is left
+	 * to finish, since onKilled carries on from there.
+	 * @param handler handler
+	 */
+	private void handle(Runnable handler) {
+		try {
+			handler.run();
+		}
+		catch (Throwable e) {
+			e.printStackTrace();
+			boolean stuck = killInProgress == false && 
+					(state == SupervisorState.KILLING || state == SupervisorState.REBOOTING);
+			try {
+				commandLog.logItem("Supervisor error in state %s: %s", state, e);
+				if (stuck) {
+					// don't know how far it got, so see if anything is there.
+					setState(SupervisorState.LAUNCHING);
+				}
+			}
+			catch (Throwable e2) {
+				e2.printStackTrace();
+			}
+			if (stuck) {
+				state = SupervisorState.LAUNCHING;
+			}
+			launchTime = 0;
+			startPending = false;
+			probeInFlight = false;
+			probeGeneration++;
+			if (scheduler.isShutdown() == false) {
+				scheduleProbe(PROBEINTERVAL);
+			}
+		}
+	}
+
+	private void finish() {
+		scheduler.shutdownNow();
+		// let a kill which has started finish.
+		killer.shutdown();
+		finished.countDown();
+	}
+
+	private void onTick() {
+		if (dogControl.keepRunning == false) {
+			finish();
+			return;
+		}
+		DogParams dogParams = dogControl.getParams();
+		if (dogParams.isActiveDog() == false || dogControl.isInStartWait()) {
+			setState(SupervisorState.INACTIVE);
+			startPending = false;
+			scheduleProbe(PROBEINTERVAL);
+			return;
+		}
+		if (state == SupervisorState.KILLING || state == SupervisorState.REBOOTING) {
+			// these carry on by themselves
+			return;
+		}
+		if (probeInFlight) {
+			/*
+			 * A probe which doesn't get a reply can take several timeouts to fail,
+			 * so keep checking the suspicion level rather than waiting for it.
+			 */
+			if (checkSuspicion() == false) {
+				scheduleProbe(PROBEINTERVAL);
+			}
+			return;
+		}
+		probeInFlight = true;
+		int generation = probeGeneration;
+		dogControl.probeAsync().whenComplete((result, ex) ->
+			execute(() -> onProbeResult(generation, result)));
+		// keeps ticking until the result comes back and schedules the next probe.
+		scheduleProbe(PROBEINTERVAL);
+	}
+
+	/**
+	 * Called on each tick while a probe is waiting for replies. 
+	 * @return true if PAMGuard has gone quiet for long enough to be killed, 
+	 * in which case it's being killed. 
+	 */
+	private boolean checkSuspicion() {
+		if (state == SupervisorState.INACTIVE || state == SupervisorState.LAUNCHING) {
+			// not replied yet, so phi is infinite. Leave it to the probe. 
+			return false;
+		}
+		double phi = dogControl.getSuspicionLevel();
+		if (phi < dogControl.getParams().getPhiDeadThreshold() || dogControl.shouldLaunch() == false) {
+			return false;
+		}
+		commandLog.logItem("PAMGuard not replying while probe in progress, suspicion level phi = %3.1f", phi);
+		killAndRelaunch(false);
+		return true;
+	}
+
+	private void onProbeResult(int generation, ProbeResult result) {
+		if (generation != probeGeneration) {
+			// probe of an instance which has since been killed.
+			return;
+		}
+		probeInFlight = false;
+		if (dogControl.keepRunning == false) {
+			finish();
+			return;
+		}
+		if (state == SupervisorState.KILLING || state == SupervisorState.REBOOTING) {
+			return;
+		}
+		if (dogControl.getParams().isActiveDog() == false || dogControl.isInStartWait()) {
+			// deactivated while the probe was out.
+			scheduleProbe(0);
+			return;
+		}
+		OutputCapture capture = dogControl.getOutputCapture();
+		dogControl.publishStatus(String.format("state=%s alive=%s status=%d phi=%3.1f lines/s=%.0f bytes/s=%.0f", state,
+				result != null && result.isAlive(), result == null ? -1 : result.getStatus(),
+				dogControl.getSuspicionLevel(), capture.getLinesPerSecond(), capture.getBytesPerSecond()));
+		if (result == null || result.isAlive() == false) {
+			onNoReply();
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (state == SupervisorState.LAUNCHING || state == SupervisorState.INITIALISING) {
+			long t = now - launchTime;
+			if (result.isInitialised() == false) {
+				setState(SupervisorState.INITIALISING);
+				if (t > LAUNCHWAIT && launchErrorLogged == false) {
+					commandLog.logItem("Error starting PAMGuard after %3.1fs: isRunning is true, Initialised is false",
+							(double) t / 1000.);
+					launchErrorLogged = true;
+				}
+				scheduleProbe(FASTPROBEINTERVAL);
+				return;
+			}
+			if (launchTime > 0) {
+				commandLog.logItem("PAMGuard launch OK after %3.1fs: isRunning is true, Initialised is true",
+						(double) t / 1000.);
+				launchTime = 0;
+				dogControl.trackProcessTree();
+			}
+		}
+		switch (result.getStatus()) {
+		case UdpCommands.PAM_IDLE:
+			onIdle(result);
+			break;
+		case UdpCommands.PAM_RUNNING:
+			setState(SupervisorState.RUNNING);
+			if (startPending) {
+				commandLog.logItem("Start Ok");
+				startPending = false;
+			}
+			stallCount = 0;
+			majorErrorCount = 0;
+			startFailures = 0;
+			scheduleProbe(dogControl.isHeartbeatFresh() ? HEARTBEATINTERVAL : PROBEINTERVAL);
+			break;
+		case UdpCommands.PAM_STALLED:
+			setState(SupervisorState.STALLED);
+			onStalled();
+			break;
+		case UdpCommands.PAM_INITIALISING:
+			setState(SupervisorState.INITIALISING);
+			scheduleProbe(FASTPROBEINTERVAL);
+			break;
+		default:
+			scheduleProbe(PROBEINTERVAL);
+		}
+	}
+
+	/**
+	 * Probe didn't get any reply from PAMGuard.
+	 */
+	private void onNoReply() {
+		long now = System.currentTimeMillis();
+		if (state == SupervisorState.LAUNCHING && launchTime > 0 && now - launchTime < LAUNCHWAIT) {
+			scheduleProbe(FASTPROBEINTERVAL);
+			return;
+		}
+		if (state == SupervisorState.LAUNCHING && launchTime > 0) {
+			commandLog.logItem("Error starting PAMGuard after %3.1fs: isRunning is false, Initialised is false",
+					(double) (now - launchTime) / 1000.);
+			launchTime = 0;
+		}
+		/*
+		 * If it's been replying regularly, one missed probe may just mean it's
+		 * busy, so only kill it once the suspicion level gets high enough. If it's
+		 * never replied, phi is infinite.
+		 */
+		double phi = dogControl.getSuspicionLevel();
+		if (phi < dogControl.getParams().getPhiDeadThreshold()) {
+			commandLog.logItem("PAMGuard not replying, suspicion level phi = %3.1f", phi);
+			scheduleProbe(PROBEINTERVAL);
+			return;
+		}
+		if (dogControl.shouldLaunch()) {
+			// kill old one first - could be because UDP is not responding.
+			commandLog.logItem("In call from probe().isAlive() == false and shouldLaunch() == true");
+			killAndRelaunch(false);
+		}
+		else {
+			scheduleProbe(PROBEINTERVAL);
+		}
+	}
+
+	private void onIdle(ProbeResult result) {
+		setState(SupervisorState.IDLE);
+		DogParams dogParams = dogControl.getParams();
+		if (startPending) {
+			if (System.currentTimeMillis() < startDeadline) {
+				scheduleProbe(FASTPROBEINTERVAL);
+				return;
+			}
+			startPending = false;
+			startFailures++;
+			commandLog.logItem("Start Failed status " + result.getStatus());
+			// counts as a start, so there is a pause before the next one
+			dogControl.addEvent(SupervisionEvent.START);
+		}
+		else if (dogControl.shouldStart()) {
+			startPending = true;
+			startDeadline = System.currentTimeMillis() + STARTWAIT;
+			dogControl.sendStart();
+			scheduleProbe(FASTPROBEINTERVAL);
+			return;
+		}
+		/*
+		 * If it's been running before, kill it as soon as it's been idle for too
+		 * long compared to how it normally runs, otherwise give it a few goes.
+		 */
+		PhiAccrualDetector progressDetector = dogControl.getProgressDetector();
+		double idlePhi = progressDetector.phi();
+		if (startFailures >= 5 || (startFailures > 0 && progressDetector.hasHistory() &&
+				idlePhi >= dogParams.getPhiStallThreshold())) {
+			majorErrorCount++;
+			dogControl.addRestart(new RestartInfo(RestartType.RESTARTPAMGUARD, "PAMGuard won't start running"));
+			commandLog.logItem("In startFailures = %d, idle suspicion level phi = %3.1f", startFailures, idlePhi);
+			startFailures = 0;
+			killAndRelaunch(true);
+			return;
+		}
+		scheduleProbe(PROBEINTERVAL);
+	}
+
+	private void onStalled() {
+		/*
+		 * If it's been running before, use the suspicion level from how long it's
+		 * been since it was last running. If not, there is no history to go on
+		 * so just count stalls.
+		 */
+		PhiAccrualDetector progressDetector = dogControl.getProgressDetector();
+		double stallPhi = progressDetector.phi();
+		boolean stalled;
+		if (progressDetector.hasHistory()) {
+			stalled = stallPhi >= dogControl.getParams().getPhiStallThreshold();
+		}
+		else {
+			stalled = ++stallCount > 10;
+		}
+		if (stalled == false) {
+			scheduleProbe(PROBEINTERVAL);
+			return;
+		}
+		stallCount = 0;
+		if (++majorErrorCount > 10) {
+			dogControl.majorErrorAction(majorErrorCount);
+		}
+		dogControl.addRestart(new RestartInfo(RestartType.RESTARTPAMGUARD, "PAMGuard Stalled"));
+		commandLog.logItem("Because UdpCommands.PAM_STALLED, suspicion level phi = %3.1f", stallPhi);
+		killAndRelaunch(true);
+	}
+
+	private void onProcessEnded() {
+		if (state == SupervisorState.KILLING || state == SupervisorState.REBOOTING ||
+				dogControl.getParams().isActiveDog() == false || dogControl.isInStartWait()) {
+			return;
+		}
+		/*
+		 * No need to wait for probes to fail, we know it's gone.
+		 */
+		startPending = false;
+		if (dogControl.shouldLaunch()) {
+			commandLog.logItem("In call from PAMGuard process ended and shouldLaunch() == true");
+			launch();
+		}
+		else {
+			scheduleProbe(PROBEINTERVAL);
+		}
+	}
+
+	/**
+	 * Kill PAMGuard, then either restart the PC or launch it again.
+	 * @param considerRestart consider a restart of the PC if PAMGuard has
+	 * had to be killed a lot recently.
+	 */
+	private void killAndRelaunch(boolean considerRestart) {
+		setState(SupervisorState.KILLING);
+		startPending = false;
+		probeGeneration++;
+		probeInFlight = false;
+		killInProgress = true;
+		CompletableFuture.runAsync(() -> dogControl.killPamguard(), killer).whenComplete((v, e) ->
+			execute(() -> onKilled(considerRestart, e)));
+	}
+
+	/**
+	 * Called back on the scheduler thread once the kill has finished.
+	 * @param considerRestart consider a restart of the PC
+	 * @param killError anything thrown by the kill, or null
+	 */
+	private void onKilled(boolean considerRestart, Throwable killError) {
+		killInProgress = false;
+		if (killError != null) {
+			commandLog.logItem("Error killing PAMGuard: %s", killError);
+		}
+		if (dogControl.keepRunning == false) {
+			finish();
+			return;
+		}
+		if (state != SupervisorState.KILLING) {
+			// something else has happened since. 
+			return;
+		}
+		/**
+		 * Consider a total restart of the PC if the number of times the process has had to
+		 * be killed is high.
+		 */
+		if (considerRestart && dogControl.condsiderRestart()) {
+			setState(SupervisorState.REBOOTING);
+			if (dogControl.restartPC()) {
+				scheduleProbe(0);
+				return;
+			}
+		}
+		launch();
+	}
+
+	private void launch() {
+		setState(SupervisorState.LAUNCHING);
+		// anything still out was probing the old instance, or nothing at all.
+		probeGeneration++;
+		probeInFlight = false;
+		launchErrorLogged = false;
+		if (dogControl.launchPamguard()) {
+			launchTime = System.currentTimeMillis();
+			scheduleProbe(FASTPROBEINTERVAL);
+		}
+		else {
+			launchTime = 0;
+			scheduleProbe(PROBEINTERVAL);
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package pamdog;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Request / reply channel used to send control commands (ping, status, start,
+ * stop, etc.) to PAMGuard. Implemented over loopback UDP by DogUDP, which is
+ * what PAMGuard listens on by default, or over a Unix domain socket by
+ * UnixSocketTransport.
+ */
+public interface DogTransport {
+
+	/**
+	 * Send a command to PAMGuard and wait for the reply.
+	 * @param command command string
+	 * @param timeout timeout in milliseconds
+	 * @return reply, or null if there was an error or no reply within timeout.
+	 */
+	public String sendCommand(String command, int timeout);
+
+	/**
+	 * Send a command to PAMGuard without waiting for the reply.
+	 * @param command command string
+	 * @param timeout timeout in milliseconds
+	 * @return future which completes with PAMGuard's reply or completes exceptionally
+	 * if the command can't be sent or there is no reply within timeout.
+	 */
+	public CompletableFuture<String> sendCommandAsync(String command, int timeout);
+
+	/**
+	 * @return how long to wait for a reply from PAMGuard in milliseconds, based on
+	 * recent round trip times.
+	 */
+	public int getTimeout();
+
+	/**
+	 * @return round trip time estimator for this PAMGuard instance
+	 */
+	public RttEstimator getRttEstimator();
+
+	/**
+	 * @return failure detector for this PAMGuard instance, which the transport
+	 * doesn't feed itself. DogControl gives it one heartbeat for each probe which
+	 * gets a reply, so that the gaps between heartbeats are the gaps between probes.
+	 */
+	public PhiAccrualDetector getLivenessDetector();
+
+	/**
+	 * @return number of replies from PAMGuard which arrived after the command they
+	 * were for had timed out.
+	 */
+	public long getLateReplyCount();
+
+	/**
+	 * @return true if sending a command which PAMGuard may not answer (e.g. summary,
+	 * which older builds don't know) does no harm to the commands after it. If false,
+	 * only send commands which always get a reply.
+	 */
+	public boolean allowsUnansweredCommands();
+
+	/**
+	 * @return the last error, or null if the last command was OK
+	 */
+	public String getLastError();
+
+	/**
+	 * Close the transport. Any commands still in flight may never complete.
+	 */
+	public void close();
+
+}
@@ -1,21 +1,106 @@
 package pamdog;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DogUDP {
+/**
+ * UDP communication with PAMGuard. <p>
+ * Commands are sent over non blocking datagram channels which are all serviced
+ * by a single selector thread, so several commands can be in flight at once and
+ * a slow reply to one of them (e.g. a long ping) doesn't hold up anyone else.
+ * PAMGuard replies to whichever address the command came from, so each command in
+ * flight gets it's own channel and that's what ties the reply back to the request id.
+ * Channels are reused once their command has completed. If a command times out, it's
+ * channel isn't reused until the late reply has turned up (or it's given up on), and
+ * every channel stays registered with the selector, so late replies are thrown away as
+ * soon as they arrive and counted, rather than being read as the answer to the next command.
+ * A command on a reused channel is handed to the selector thread to attach and send, 
+ * so that nothing else touches a registered channel and a reply can't be read as late
+ * while it's command is being attached. 
+ * @author Doug Gillespie
+ *
+ */
+public class DogUDP implements DogTransport {
 
 	private IdleFunction idleFunction;
 //	private int portId;
 	private InetAddress inetAddr;
-	DatagramSocket socket;
-	private String lastError;
+	private volatile String lastError;
 	private DogControl dogControl;
-	private int currentUdpPort;
+	private volatile int currentUdpPort;
+
+	/**
+	 * Max size of a reply from PAMGuard.
+	 */
+	private static final int MAXREPLYSIZE = 4096;
+
+	private Selector selector;
+
+	private Thread selectorThread;
+
+	private AtomicInteger nextRequestId = new AtomicInteger();
+
+	/**
+	 * Commands which have been sent, but not yet registered with the selector.
+	 * Registration has to happen in the selector thread.
+	 */
+	private ConcurrentLinkedQueue<PendingCommand> newCommands = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Registered channels which are not waiting for a reply and can be used
+	 * for the next command.
+	 */
+	private ConcurrentLinkedDeque<SelectionKey> idleChannels = new ConcurrentLinkedDeque<>();
+
+	/**
+	 * Max number of idle channels to keep open.
+	 */
+	private static final int MAXIDLECHANNELS = 4;
+
+	/**
+	 * How long to wait for a late reply on a channel whose command timed out
+	 * before closing the channel.
+	 */
+	private static final int LATEREPLYWAIT = 10000;
+
+	/**
+	 * Extra time sendCommand waits beyond the timeout for the selector thread 
+	 * to time the command out, before giving up on it itself. 
+	 */
+	private static final int SELECTORGRACE = 1000;
+
+	/**
+	 * Number of replies which arrived after their command had timed out.
+	 */
+	private AtomicLong lateReplies = new AtomicLong();
+
+	/**
+	 * Round trip times for this PAMGuard instance, used to set ping and status timeouts.
+	 */
+	private RttEstimator rttEstimator = new RttEstimator(1000, 500, 10000);
+
+	/**
+	 * Failure detector for this PAMGuard instance, fed by DogControl with one heartbeat
+	 * for each probe which gets a reply.
+	 */
+	private PhiAccrualDetector livenessDetector = new PhiAccrualDetector(100, 500, 3000, 1000);
 
 	public DogUDP(DogControl dogControl, IdleFunction idleFunction) {
 		this.idleFunction = idleFunction;
@@ -27,85 +112,434 @@ public class DogUDP {
 //		} catch (UnknownHostException e) {
 //			e.printStackTrace();
 //		}
-		try {
-			socket = new DatagramSocket();
-		} catch (SocketException e) {
-			e.printStackTrace();
-		}
-
 	}
 
 
 	/**
-	 * Send a command to PAMGuard. 
+	 * Send a command to PAMGuard and wait for the reply.
 	 * @param command
 	 * @param timeout
-	 * @return
+	 * @return reply, or null if there was an error or no reply within timeout.
 	 */
-	synchronized public String sendCommand(String command, int timeout) {
+	public String sendCommand(String command, int timeout) {
+		CompletableFuture<String> reply = sendCommandAsync(command, timeout);
+		try {
+			String received = reply.get(timeout + SELECTORGRACE, TimeUnit.MILLISECONDS);
+			lastError = null;
+			return received;
+		} catch (TimeoutException e) {
+			lastError = "Command not timed out by the selector thread";
+			System.out.println(lastError + " from command \"" + command + "\"");
+			return null;
+		} catch (InterruptedException e) {
+			lastError = e.getMessage();
+			return null;
+		} catch (ExecutionException e) {
+			lastError = e.getCause().getMessage();
+			System.out.println(lastError + " from command \"" + command + "\"");
+			return null;
+		}
+	}
+
+	/**
+	 * Send a command to PAMGuard without waiting for the reply.
+	 * @param command command string
+	 * @param timeout timeout in milliseconds
+	 * @return future which completes with PAMGuard's reply or completes exceptionally
+	 * if the command can't be sent or there is no reply within timeout.
+	 */
+	public CompletableFuture<String> sendCommandAsync(String command, int timeout) {
+		CompletableFuture<String> reply = new CompletableFuture<>();
 		int port = currentUdpPort;
 		if(currentUdpPort==0) {
-			return null;
+			reply.completeExceptionally(new IOException("No UDP port for PAMGuard"));
+			return reply;
 		}
-		
-		flushSocket(port);
-		
+
 //		System.out.printf("Send command %s to %s port %d\n", command, inetAddr.toString(), port);
-//		if (curidleFunction.dogParams.getUdpPort();
-		byte[] bytes = command.getBytes();
-		DatagramPacket outPacket = new DatagramPacket(bytes, bytes.length, inetAddr, port);
+		SelectionKey key = getIdleChannel(port);
+		DatagramChannel channel = null;
+		Selector sel;
+		PendingCommand pending;
 		try {
-			socket.send(outPacket);
+			sel = checkSelector();
+			if (key == null) {
+				channel = DatagramChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(new InetSocketAddress(inetAddr, port));
+			}
+			else {
+				channel = (DatagramChannel) key.channel();
+			}
+			pending = new PendingCommand(nextRequestId.incrementAndGet(), command,
+					channel, reply, System.currentTimeMillis() + timeout);
+			if (key == null) {
+				// nothing reads a new channel until it's registered, so it's safe to send now. 
+				pending.send();
+			}
+			else {
+				/*
+				 * the selector thread may be reading the channel, so leave it to 
+				 * attach and send, otherwise a quick reply could get thrown away as 
+				 * a late reply on an idle channel.
+				 */
+				pending.key = key;
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			lastError = e.getMessage();
-			return null;
+			closeChannel(channel);
+			reply.completeExceptionally(e);
+			return reply;
 		}
-		/*
-		 * Now read back from the server. 
-		 */
-		byte[] returnBytes = new byte[128];
-		DatagramPacket inPacket = new DatagramPacket(returnBytes, returnBytes.length);
-		try {
-			socket.setSoTimeout(timeout);
-			socket.receive(inPacket);
-		} catch (IOException e) {
-//			e.printStackTrace();
-			lastError = e.getMessage();
-			System.out.println(lastError + " from command \"" + command + "\"");
-			return null;
+		newCommands.add(pending);
+		sel.wakeup();
+		return reply;
+	}
+
+	/**
+	 * Get an idle channel which is connected to the right port. Any which
+	 * are connected to a different port are closed.
+	 * @param port PAMGuard UDP port
+	 * @return selection key for the channel, or null if none available
+	 */
+	private SelectionKey getIdleChannel(int port) {
+		SelectionKey key;
+		while ((key = idleChannels.pollFirst()) != null) {
+			DatagramChannel channel = (DatagramChannel) key.channel();
+			try {
+				InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+				if (key.isValid() && remote != null && remote.getPort() == port) {
+					return key;
+				}
+			} catch (IOException e) {
+			}
+			closeChannel(channel);
+		}
+		return null;
+	}
+
+	/**
+	 * Discard anything left on a channel that might have come in if PAMguard was slow to
+	 * respond to an earlier request. The channel is non blocking, so this returns immediately
+	 * when there is nothing there.
+	 * @param channel channel about to be reused
+	 * @throws IOException
+	 */
+	private void flushChannel(DatagramChannel channel) throws IOException {
+		// only need to know a packet was there, so it's fine for it to get truncated.
+		ByteBuffer discard = ByteBuffer.allocate(1);
+		while (channel.receive(discard) != null) {
+			lateReplies.incrementAndGet();
+			discard.clear();
+		}
+	}
+
+	/**
+	 * Put a channel back in the idle list once it's command has completed. Only 
+	 * called from the selector thread, once anything still on the channel has been read.
+	 * @param key selection key for the channel
+	 */
+	private void releaseChannel(SelectionKey key) {
+		key.attach(null);
+		if (idleChannels.size() < MAXIDLECHANNELS) {
+			idleChannels.offerFirst(key);
 		}
-		String received = new String(inPacket.getData(), 0, inPacket.getLength());
-		lastError = null;
-		return received;
+		else {
+			closeChannel((DatagramChannel) key.channel());
+		}
+	}
+
+	/**
+	 * @return how long to wait for a reply from PAMGuard in milliseconds, based on 
+	 * recent round trip times. 
+	 */
+	public int getTimeout() {
+		return rttEstimator.getTimeout();
+	}
+
+	/**
+	 * @return round trip time estimator for this PAMGuard instance
+	 */
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+
+	/**
+	 * @return failure detector for this PAMGuard instance
+	 */
+	public PhiAccrualDetector getLivenessDetector() {
+		return livenessDetector;
+	}
+
+	/**
+	 * Each command goes out on it's own channel, so one which doesn't get 
+	 * a reply has no effect on any others. 
+	 */
+	@Override
+	public boolean allowsUnansweredCommands() {
+		return true;
+	}
+
+	/**
+	 * @return number of replies from PAMGuard which arrived after the command they
+	 * were for had timed out. A rising count is a good sign that PAMGuard is lagging.
+	 */
+	public long getLateReplyCount() {
+		return lateReplies.get();
 	}
 
+	/**
+	 * Open the selector and start it's thread the first time anything gets sent.
+	 * @return the selector
+	 * @throws IOException
+	 */
+	private synchronized Selector checkSelector() throws IOException {
+		if (selector != null) {
+			return selector;
+		}
+		selector = Selector.open();
+		selectorThread = new Thread(new SelectorLoop(selector), "DogUDP Selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		return selector;
+	}
 
 	/**
-	 * flush any old data out of the socket that might have been 
-	 * left there if PAMguard was slow to respond to an earlier request. 
-	 * @param port
+	 * Loop which registers new commands, reads replies and times out
+	 * commands which haven't had a reply.
 	 */
-	private void flushSocket(int port) {
-		/*
-		 * Now read back from the server. 
+	private class SelectorLoop implements Runnable {
+
+		private Selector selector;
+
+		private ByteBuffer replyBuffer = ByteBuffer.allocateDirect(MAXREPLYSIZE);
+
+		private byte[] replyBytes = new byte[MAXREPLYSIZE];
+
+		public SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (selector.isOpen()) {
+					selector.select(getSelectTimeout());
+					registerNewCommands();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (key.isValid() && key.isReadable()) {
+							readReply(key);
+						}
+					}
+					expireCommands();
+				}
+			}
+			catch (ClosedSelectorException e) {
+				// closed by close()
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 *
+		 * @return time until the next command times out, or 0 (wait forever) if nothing is in flight.
 		 */
-		byte[] returnBytes = new byte[128];
-		DatagramPacket inPacket = new DatagramPacket(returnBytes, returnBytes.length);
-		
-		while(true) {
+		private long getSelectTimeout() {
+			long first = Long.MAX_VALUE;
+			for (SelectionKey key:selector.keys()) {
+				PendingCommand pending = (PendingCommand) key.attachment();
+				if (pending != null) {
+					first = Math.min(first, pending.deadline);
+				}
+			}
+			if (first == Long.MAX_VALUE) {
+				return 0;
+			}
+			return Math.max(1, first - System.currentTimeMillis());
+		}
+
+		/**
+		 * Register the channels of new commands, or for commands on reused channels
+		 * attach them to the channel's key and send them. 
+		 */
+		private void registerNewCommands() {
+			PendingCommand pending;
+			while ((pending = newCommands.poll()) != null) {
+				try {
+					if (pending.key == null) {
+						pending.key = pending.channel.register(selector, SelectionKey.OP_READ, pending);
+					}
+					else {
+						flushChannel(pending.channel);
+						pending.key.attach(pending);
+						pending.send();
+					}
+				} catch (IOException e) {
+					pending.fail(e);
+				}
+			}
+		}
+
+		private void readReply(SelectionKey key) {
+			PendingCommand pending = (PendingCommand) key.attachment();
+			replyBuffer.clear();
+			if (pending == null || pending.timedOut) {
+				readLateReply(key);
+				return;
+			}
+			try {
+				if (pending.channel.read(replyBuffer) <= 0) {
+					return;
+				}
+			} catch (PortUnreachableException e) {
+				// ICMP came back, so nothing is listening on the port.
+				pending.fail(new PortUnreachableException("Port unreachable"));
+				return;
+			} catch (IOException e) {
+				pending.fail(e);
+				return;
+			}
+			replyBuffer.flip();
+			int n = replyBuffer.remaining();
+			replyBuffer.get(replyBytes, 0, n);
+			pending.complete(new String(replyBytes, 0, n));
+		}
+
+		/**
+		 * Read and throw away a reply on an idle channel.
+		 * @param key selection key for an idle channel
+		 */
+		private void readLateReply(SelectionKey key) {
+			DatagramChannel channel = (DatagramChannel) key.channel();
+			try {
+				while (channel.receive(replyBuffer) != null) {
+					lateReplies.incrementAndGet();
+					replyBuffer.clear();
+				}
+			} catch (IOException e) {
+				idleChannels.remove(key);
+				closeChannel(channel);
+				return;
+			}
+			if (key.attachment() != null) {
+				// the reply we were waiting for has turned up, so the channel is clean again. 
+				releaseChannel(key);
+			}
+		}
+
+		private void expireCommands() {
+			long now = System.currentTimeMillis();
+			for (SelectionKey key:selector.keys()) {
+				PendingCommand pending = (PendingCommand) key.attachment();
+				if (pending == null || now < pending.deadline) {
+					continue;
+				}
+				if (pending.timedOut) {
+					// given up waiting for the late reply.
+					closeChannel(pending.channel);
+				}
+				else {
+					pending.fail(new SocketTimeoutException("Receive timed out"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * A command which has been sent and is waiting for a reply.
+	 */
+	private class PendingCommand {
+
+		private int requestId;
+		private String command;
+		private DatagramChannel channel;
+		private CompletableFuture<String> reply;
+		private long deadline;
+		private SelectionKey key;
+		private boolean timedOut;
+		private long sendNanos = System.nanoTime();
+		private long sendEpoch = rttEstimator.getEpoch();
+
+		public PendingCommand(int requestId, String command, DatagramChannel channel,
+				CompletableFuture<String> reply, long deadline) {
+			this.requestId = requestId;
+			this.command = command;
+			this.channel = channel;
+			this.reply = reply;
+			this.deadline = deadline;
+		}
+
+		private void send() throws IOException {
+			sendNanos = System.nanoTime();
+			if (channel.write(ByteBuffer.wrap(command.getBytes())) == 0) {
+				throw new IOException("Socket send buffer full");
+			}
+		}
+
+		private void complete(String received) {
+			rttEstimator.addSample((System.nanoTime() - sendNanos) / 1.e6);
+			releaseChannel(key);
+			reply.complete(received);
+		}
+
+		private void fail(IOException e) {
+			if (e instanceof SocketTimeoutException) {
+				/*
+				 * the channel is fine, the reply just hasn't come back yet, so keep it
+				 * out of the idle list until the reply has been and gone. 
+				 */
+				timedOut = true;
+				deadline = System.currentTimeMillis() + LATEREPLYWAIT;
+				rttEstimator.timedOut(sendEpoch);
+			}
+			else {
+				closeChannel(channel);
+			}
+			lastError = e.getMessage();
+			reply.completeExceptionally(e);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Request %d \"%s\"", requestId, command);
+		}
+	}
+
+	private void closeChannel(DatagramChannel channel) {
+		if (channel == null) {
+			return;
+		}
 		try {
-			socket.setSoTimeout(1);
-			socket.receive(inPacket);
-			System.out.println("Packet flushed from socket: " + new String(inPacket.getData(), 0, inPacket.getLength()));
+			channel.close();
 		} catch (IOException e) {
-//			e.printStackTrace();
-			lastError = e.getMessage();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop the selector thread. Any commands still in flight
+	 * will never complete.
+	 */
+	public synchronized void close() {
+		if (selector == null) {
 			return;
 		}
+		SelectionKey key;
+		while ((key = idleChannels.pollFirst()) != null) {
+			closeChannel((DatagramChannel) key.channel());
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		// TODO Auto-generated method stub
-		
+		selector = null;
 	}
 
 
@@ -125,44 +559,18 @@ public class DogUDP {
 	}
 	
 	/**
-	 * find a free port between the given range
-	 * @param startId
-	 * @param endId
-	 * @return -1 if no port can be found
+	 * @return the port commands are sent to
 	 */
-	public static int findFreePort(int startId, int endId) {
-		for (int p = startId; p<= endId; p++) {
-			if (portAvailable(p)) {
-				return p;
-			}
-		}
-		return -1;
+	public int getCurrentUdpPort() {
+		return currentUdpPort;
 	}
-	
+
 	/**
-	 * check to see if a port is available. 
-	 * @param portId
-	 * @return true if it's available. 
-	 */
-	public static boolean portAvailable(int portId) {
-		DatagramSocket ds = null;
-		boolean socketOk = true;
-	    try {
-	        ds = new DatagramSocket(portId);
-	        ds.setReuseAddress(true);
-	        socketOk = true;
-	    } 
-	    catch (IOException e) {
-	    	socketOk = false;
-	    } 
-	    if (ds != null) {
-	    	ds.close();
-	    }
-	    return socketOk;
-	}
-
-
-	public void setCurrentUdpPort(int freePort) {
-//		currentUdpPort = freePort;
+	 * Set the port commands are sent to, e.g. when PAMGuard has been launched on a
+	 * different port to the one in the parameters. 
+	 * @param udpPort PAMGuard's UDP port
+	 */
+	public void setCurrentUdpPort(int udpPort) {
+		currentUdpPort = udpPort;
 	}
 }
@@ -0,0 +1,139 @@
+package pamdog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events in fixed width time buckets over a sliding window, so that
+ * "how many in the last N seconds" takes at most one pass over a small fixed
+ * number of buckets, however many events there have been. The count includes
+ * the whole of the oldest bucket in the window, so can include events up to one
+ * bucket width older than asked for. <p>
+ * Each slot holds which bucket it's counting and the count packed into one long,
+ * so adding is a compare and set and counting is plain reads, without locks or
+ * allocation. Counting stops at the newest bucket with anything in it, so when
+ * nothing has happened recently it doesn't look at the buckets at all.
+ */
+public class EventCounter {
+
+	/**
+	 * Low bits of a slot hold the count, the rest which bucket it's for.
+	 */
+	private static final int COUNTBITS = 20;
+
+	private static final long COUNTMASK = (1L << COUNTBITS) - 1;
+
+	/**
+	 * Slot value before anything is counted in it, which matches no bucket.
+	 */
+	private static final long EMPTY = -1L;
+
+	private long bucketMillis;
+
+	private int nBuckets;
+
+	private AtomicLongArray slots;
+
+	/**
+	 * Newest bucket anything has been counted in
+	 */
+	private AtomicLong newestId = new AtomicLong(-1);
+
+	/**
+	 * @param bucketMillis width of each bucket in milliseconds
+	 * @param nBuckets number of buckets, which sets the longest window that can be counted
+	 */
+	public EventCounter(long bucketMillis, int nBuckets) {
+		this.bucketMillis = bucketMillis;
+		this.nBuckets = nBuckets;
+		slots = new AtomicLongArray(nBuckets);
+		for (int i = 0; i < nBuckets; i++) {
+			slots.set(i, EMPTY);
+		}
+	}
+
+	/**
+	 * Record an event now
+	 */
+	public void add() {
+		add(System.currentTimeMillis());
+	}
+
+	/**
+	 * Record an event. Events older than the span of the counter are ignored.
+	 * @param timeMillis time of event
+	 */
+	public void add(long timeMillis) {
+		long id = timeMillis / bucketMillis;
+		if (id <= newestId.get() - nBuckets) {
+			return;
+		}
+		int slot = (int) (id % nBuckets);
+		while (true) {
+			long old = slots.get(slot);
+			long oldId = old >> COUNTBITS;
+			long updated;
+			if (oldId == id) {
+				if ((old & COUNTMASK) == COUNTMASK) {
+					// full, which is plenty for anything being rate limited
+					break;
+				}
+				updated = old + 1;
+			}
+			else if (oldId > id) {
+				// slot already reused for something newer
+				return;
+			}
+			else {
+				updated = id << COUNTBITS | 1;
+			}
+			if (slots.compareAndSet(slot, old, updated)) {
+				break;
+			}
+		}
+		newestId.accumulateAndGet(id, Math::max);
+	}
+
+	/**
+	 * Count events in the last windowMillis
+	 * @param windowMillis window length in milliseconds
+	 * @return number of events
+	 */
+	public int count(long windowMillis) {
+		return count(windowMillis, System.currentTimeMillis());
+	}
+
+	/**
+	 * Count events in a window ending at a given time
+	 * @param windowMillis window length in milliseconds, rounded down to whole buckets
+	 * and capped at the span of the counter
+	 * @param nowMillis end of window
+	 * @return number of events
+	 */
+	public int count(long windowMillis, long nowMillis) {
+		long nowId = nowMillis / bucketMillis;
+		long firstId = nowId - Math.min(windowMillis / bucketMillis, nBuckets - 1);
+		long lastId = Math.min(nowId, newestId.get());
+		if (lastId < firstId) {
+			return 0;
+		}
+		int n = 0;
+		int slot = (int) (firstId % nBuckets);
+		for (long id = firstId; id <= lastId; id++) {
+			long value = slots.get(slot);
+			n += value >> COUNTBITS == id ? (int) (value & COUNTMASK) : 0;
+			if (++slot == nBuckets) {
+				slot = 0;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the longest window that can be counted in milliseconds
+	 */
+	public long getSpanMillis() {
+		return bucketMillis * nBuckets;
+	}
+
+}
@@ -0,0 +1,83 @@
+package pamdog;
+
+import java.util.List;
+
+import pamdog.RestartInfo.RestartType;
+
+/**
+ * Sliding window counters for each type of restart and supervision event, which
+ * the watchdog uses to decide whether it's done something too often recently.
+ * Restarts are still stored in DogParams so that they survive a PC restart and
+ * the counters are seeded from there at start up. Counters are held in arrays
+ * indexed by the enum ordinals, so finding one is just an array read.
+ */
+public class EventCounters {
+
+	private EventCounter[] restartCounters = new EventCounter[RestartType.values().length];
+
+	private EventCounter[] eventCounters = new EventCounter[SupervisionEvent.values().length];
+
+	public EventCounters() {
+		/*
+		 * Counting goes through every bucket in the window, so buckets are about a tenth 
+		 * of the windows they're counted over: 1 minute buckets over an hour for PAMGuard 
+		 * restarts, 5 minute buckets over 4 hours for the PC. 
+		 */
+		for (RestartType restartType:RestartType.values()) {
+			restartCounters[restartType.ordinal()] = restartType == RestartType.RESTARTPC ?
+					new EventCounter(300000, 48) : new EventCounter(60000, 60);
+		}
+		// these are only ever looked at over a few seconds
+		for (SupervisionEvent event:SupervisionEvent.values()) {
+			eventCounters[event.ordinal()] = new EventCounter(1000, 120);
+		}
+	}
+
+	/**
+	 * Seed the restart counters with stored restarts.
+	 * @param restarts list of restarts, may be null
+	 */
+	public void seed(List<RestartInfo> restarts) {
+		if (restarts == null) {
+			return;
+		}
+		for (RestartInfo restartInfo:restarts) {
+			add(restartInfo);
+		}
+	}
+
+	/**
+	 * Count a restart
+	 * @param restartInfo restart
+	 */
+	public void add(RestartInfo restartInfo) {
+		restartCounters[restartInfo.getRestartType().ordinal()].add(restartInfo.getRestartTime());
+	}
+
+	/**
+	 * Count a supervision event happening now
+	 * @param event event type
+	 */
+	public void add(SupervisionEvent event) {
+		eventCounters[event.ordinal()].add();
+	}
+
+	/**
+	 * @param restartType type of restart
+	 * @param windowMillis window length in milliseconds
+	 * @return number of restarts of that type in the last windowMillis
+	 */
+	public int count(RestartType restartType, long windowMillis) {
+		return restartCounters[restartType.ordinal()].count(windowMillis);
+	}
+
+	/**
+	 * @param event event type
+	 * @param windowMillis window length in milliseconds
+	 * @return number of events of that type in the last windowMillis
+	 */
+	public int count(SupervisionEvent event, long windowMillis) {
+		return eventCounters[event.ordinal()].count(windowMillis);
+	}
+
+}
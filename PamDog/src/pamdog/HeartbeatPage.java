@@ -0,0 +1,135 @@
+package pamdog;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Small memory mapped file shared with PAMGuard, which PAMGuard updates as it runs
+ * so that the watchdog can see it's alive and what it's status is with plain memory
+ * reads, rather than a UDP round trip and the system calls and thread wake ups that
+ * go with it on both sides. <p>
+ * The file is created by the watchdog and it's path passed to PAMGuard on the command
+ * line with -heartbeat. Layout, little endian:
+ * <br>0 int magic number 0x42484450 ("PDHB")
+ * <br>4 int layout version, 1
+ * <br>8 long counter, incremented by PAMGuard every time it updates the page
+ * <br>16 int PAMGuard status, one of the UdpCommands PAM_ values
+ * <br>24 long time of the last update in milliseconds
+ * <p>PAMGuard should write the status and time, then the counter, so that when the
+ * counter is seen to change the rest is already there. If the counter stops changing
+ * the heartbeat is stale and the watchdog goes back to probing over UDP.
+ */
+public class HeartbeatPage {
+
+	public static final int MAGIC = 0x42484450;
+
+	public static final int VERSION = 1;
+
+	public static final int SIZE = 64;
+
+	public static final int COUNTEROFFSET = 8;
+
+	public static final int STATUSOFFSET = 16;
+
+	public static final int TIMEOFFSET = 24;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private Path path;
+
+	private MappedByteBuffer page;
+
+	private long lastCounter;
+
+	private long lastChange;
+
+	/**
+	 * Create the heartbeat file, or clear it if it's already there, and map it.
+	 * @param path file path
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public HeartbeatPage(Path path) throws IOException {
+		this.path = path;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.truncate(SIZE);
+			page = channel.map(MapMode.READ_WRITE, 0, SIZE);
+		}
+		reset();
+	}
+
+	/**
+	 * Clear the page ready for a new PAMGuard instance.
+	 */
+	public synchronized void reset() {
+		LONGS.setRelease(page, COUNTEROFFSET, 0L);
+		INTS.setRelease(page, STATUSOFFSET, -1);
+		LONGS.setRelease(page, TIMEOFFSET, 0L);
+		INTS.setRelease(page, 4, VERSION);
+		INTS.setRelease(page, 0, MAGIC);
+		lastCounter = 0;
+		lastChange = 0;
+	}
+
+	/**
+	 * Read the counter and see if it's moved on since the last check.
+	 * @param now current time in milliseconds
+	 * @return true if the counter has changed since the last call
+	 */
+	public synchronized boolean check(long now) {
+		long counter = (long) LONGS.getAcquire(page, COUNTEROFFSET);
+		if (counter == lastCounter) {
+			return false;
+		}
+		lastCounter = counter;
+		lastChange = now;
+		return true;
+	}
+
+	/**
+	 * @param now current time in milliseconds
+	 * @param staleMillis how long the counter can stay still for
+	 * @return true if PAMGuard has updated the page within staleMillis of the last check
+	 */
+	public synchronized boolean isFresh(long now, long staleMillis) {
+		return lastChange > 0 && now - lastChange < staleMillis;
+	}
+
+	/**
+	 * @return PAMGuard status from the page, or -1 if it's not written one
+	 */
+	public int getStatus() {
+		return (int) INTS.getAcquire(page, STATUSOFFSET);
+	}
+
+	/**
+	 * @return the counter, as of the last check
+	 */
+	public synchronized long getCounter() {
+		return lastCounter;
+	}
+
+	/**
+	 * @return the time PAMGuard last updated the page by it's own clock
+	 */
+	public long getUpdateTime() {
+		return (long) LONGS.getAcquire(page, TIMEOFFSET);
+	}
+
+	/**
+	 * @return path of the heartbeat file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+}
@@ -1,24 +1,8 @@
 package pamdog;
 
-import gui.DogDialog;
-import gui.DogHelp;
-import gui.PamDogGUI;
-
-import java.awt.AWTException;
-import java.awt.MenuItem;
-import java.awt.PopupMenu;
-import java.awt.SystemTray;
-import java.awt.TrayIcon;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.awt.event.MouseAdapter;
-import java.awt.event.MouseEvent;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import Logging.DogLog;
 
@@ -27,103 +11,143 @@ import Logging.DogLog;
  * @author Doug Gillespie
  *
  */
-public class IdleFunction extends PamDog {
+public class IdleFunction {
 
-	private TrayIcon trayIcon;
+	/**
+	 * Name given to PAMGuard with -Dname on the command line so it's process can be found
+	 */
+	public static final String LAUNCHNAME = "AutoPamguard";
 
 	private DogControl dogControl;
 	
 	private DogUDP dogUDP;
 	
+	private UnixSocketTransport unixTransport;
+	
+	private volatile DogTransport transport;
+	
 	private DogLog pamguardLog;
+	
+	private int configuredPort;
 
 	public IdleFunction(DogControl dogControl) {
 		this.dogControl = dogControl;
 		dogUDP = new DogUDP(dogControl, this);
 		pamguardLog = new DogLog(dogControl, "Pamguard", true);
-	}
-
-	public void run() {
-		/*
-		 * Launch a swing worker thread to do the work. 
-		 */
-		if(dogControl.isRunGUI()) {
-			dogControl.execute();
-		}else {
-			try {
-				dogControl.doInBackground();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
+		transport = dogUDP;
+		configure();
 	}
 
 	public String createLaunchString(DogParams params) {
 		return createLaunchString(params, params.getUdpPort());
 	}
 	/**
-	 * Create a command line to launch PAMGuard. 
+	 * Create a command line to launch PAMGuard, for display and logging. Arguments
+	 * containing spaces are wrapped in "", but it's the argument list from 
+	 * createLaunchCommand which is actually launched. 
 	 * @param params parameters
 	 * @return command line. 
 	 */
 	public String createLaunchString(DogParams params, int port) {
-		// seem unable to wrap lib path in "" - worrying for default location of files. 
-		String commandLine = String.format("\"%s\" -Dname=AutoPamguard -Xms%dm -Xmx%dm -Djava.library.path=%s %s -jar \"%s\"", 
-				params.getJre(),
-				params.getMsMemory(), params.getMxMemory(), 
-				params.getLibFolder(), params.getOtherVMOptions(), params.getJavaFile());
+		StringBuilder commandLine = new StringBuilder();
+		for (String arg:createLaunchCommand(params, port)) {
+			if (commandLine.length() > 0) {
+				commandLine.append(' ');
+			}
+			if (arg.isEmpty() || arg.indexOf(' ') >= 0) {
+				commandLine.append('"').append(arg).append('"');
+			}
+			else {
+				commandLine.append(arg);
+			}
+		}
+		return commandLine.toString();
+	}
+
+	/**
+	 * Create the arguments to launch PAMGuard with, one per element, so they can 
+	 * go straight to a ProcessBuilder without a shell or any quoting. 
+	 * @param params parameters
+	 * @param port UDP port for PAMGuard to listen for commands on
+	 * @return command and arguments
+	 */
+	public List<String> createLaunchCommand(DogParams params, int port) {
+		List<String> command = new ArrayList<>();
+		command.add(params.getJre());
+		command.add("-Dname=" + LAUNCHNAME);
+		command.add(String.format("-Xms%dm", params.getMsMemory()));
+		command.add(String.format("-Xmx%dm", params.getMxMemory()));
+		command.add("-Djava.library.path=" + params.getLibFolder());
+		command.addAll(splitOptions(params.getOtherVMOptions()));
+		command.add("-jar");
+		command.add(params.getJavaFile());
 		String psf = params.getPsfFile();
 		if (psf != null) {
-			commandLine += String.format(" -psf \"%s\"", psf);
+			command.add("-psf");
+			command.add(psf);
 		}
 		if (port > 0) {
-			commandLine += String.format(" -port %d", port);
+			command.add("-port");
+			command.add(Integer.toString(port));
 		}
-		String opt = params.getOtherOptions();
-		if (opt != null) {
-			commandLine += " " + opt;
+		String heartbeat = params.getHeartbeatFile();
+		if (heartbeat != null && heartbeat.isBlank() == false) {
+			command.add("-heartbeat");
+			command.add(heartbeat);
 		}
-		return commandLine;
-	}
-
-	/**
-	 * Create the popup menu for the tray
-	 * @return
-	 */
-	private PopupMenu getTrayMenu() {
-		PopupMenu pop = new PopupMenu();
-		MenuItem mi = new MenuItem("Quit PAMDog");
-		mi.addActionListener(new QuitDog());
-		pop.add(mi);
-		mi = new MenuItem("PAMDog Settings ...");
-		mi.addActionListener(new ConfigureDog());
-		pop.add(mi);
-		mi = new MenuItem("PAMDog Help");
-		mi.addActionListener(new PamdogHelp());
-		pop.add(mi);
-		return pop;
+		String socket = params.getControlSocket();
+		if (socket != null && socket.isBlank() == false) {
+			command.add("-controlsocket");
+			command.add(socket);
+		}
+		command.addAll(splitOptions(params.getOtherOptions()));
+		return command;
 	}
 
 	/**
-	 * Called once at start up to set up the tray icon. 
+	 * Split a string of options as typed by the user into separate arguments. 
+	 * Options are separated by white space, and "" can be put round anything 
+	 * containing spaces, e.g. a folder name. 
+	 * @param options options string, may be null
+	 * @return list of arguments
 	 */
-	public void prepare() {
-		trayIcon = new TrayIcon(PamDogGUI.getIconImageSmall(), "PAMGuard watchdog", getTrayMenu());
-		trayIcon.addMouseListener(new TrayMouse());
-		trayIcon.addActionListener(new ConfigureDog());
-		try {
-			SystemTray.getSystemTray().add(trayIcon);
-		} catch (AWTException e) {
-			e.printStackTrace();
+	public static List<String> splitOptions(String options) {
+		List<String> args = new ArrayList<>();
+		if (options == null) {
+			return args;
+		}
+		StringBuilder arg = new StringBuilder();
+		boolean inQuotes = false;
+		boolean haveArg = false;
+		for (int i = 0; i < options.length(); i++) {
+			char c = options.charAt(i);
+			if (c == '"') {
+				inQuotes = !inQuotes;
+				haveArg = true;
+			}
+			else if (Character.isWhitespace(c) && !inQuotes) {
+				if (haveArg) {
+					args.add(arg.toString());
+					arg.setLength(0);
+					haveArg = false;
+				}
+			}
+			else {
+				arg.append(c);
+				haveArg = true;
+			}
 		}
+		if (haveArg) {
+			args.add(arg.toString());
+		}
+		return args;
 	}
 
 	/**
-	 * Called before exit - removes tray icon. this will 
-	 * happen anyway, but this makes it happen quicker. 
+	 * Called before exit - closes the PAMGuard output log. 
 	 */
 	public void destroy() {
-		SystemTray.getSystemTray().remove(trayIcon);
+		closeUnixTransport();
 		pamguardLog.closeFile();
 	}
 
@@ -134,17 +158,45 @@ public class IdleFunction extends PamDog {
 		return dogUDP;
 	}
 
+	/**
+	 * @return the transport control commands are currently sent over, either 
+	 * the DogUDP or a Unix domain socket. 
+	 */
+	public DogTransport getTransport() {
+		return transport;
+	}
+
 	/**
 	 * Called at start and whenever the configuration changes - may need to 
 	 */
 	public void configure() {
 		DogParams dogParams = dogControl.getParams();
-		int port = DogUDP.findFreePort(dogParams.getUdpPort(), dogParams.getUdpPort()+10);
-		if (port < 0) {
-			System.out.printf("Unable to find free UDP port on range %d to %d\n",
-					dogParams.getUdpPort(), dogParams.getUdpPort()+10);
+		/*
+		 * Only change the port if it's been changed in the parameters, otherwise 
+		 * keep talking to a PAMGuard which was launched on a different one. If 
+		 * a PAMGuard is already running on it, that's the one to talk to. 
+		 */
+		if (dogParams.getUdpPort() != configuredPort) {
+			configuredPort = dogParams.getUdpPort();
+			dogUDP.setCurrentUdpPort(configuredPort);
+		}
+		String socket = dogParams.getControlSocket();
+		if (socket == null || socket.isBlank()) {
+			transport = dogUDP;
+			closeUnixTransport();
+		}
+		else if (unixTransport == null || unixTransport.getSocketPath().equals(Path.of(socket)) == false) {
+			closeUnixTransport();
+			unixTransport = new UnixSocketTransport(Path.of(socket));
+			transport = unixTransport;
+		}
+	}
+	
+	private void closeUnixTransport() {
+		if (unixTransport != null) {
+			unixTransport.close();
+			unixTransport = null;
 		}
-		dogUDP.setCurrentUdpPort(port);
 	}
 
 	/**
@@ -153,7 +205,7 @@ public class IdleFunction extends PamDog {
 	 * @param pamProcess
 	 */
 	public void processEnded(Process pamProcess) {
-		dogControl.processEnded();
+		dogControl.processEnded(pamProcess);
 	}
 
 
@@ -161,8 +213,9 @@ public class IdleFunction extends PamDog {
 	/**
 	 * Called when PAMguard writes a line to it's output stream.
 	 * @param msg
+	 * @return false if the log had no room for it
 	 */
-	synchronized public void pamguardMessage(LogCaptureMessage msg) {
+	synchronized public boolean pamguardMessage(LogCaptureMessage msg) {
 		String typ;
 		if (msg.isError) {
 			typ = "Err:";
@@ -170,44 +223,11 @@ public class IdleFunction extends PamDog {
 		else {
 			typ = "Pam:";
 		}
-		pamguardLog.logItem(typ + msg.line);
+		return pamguardLog.logItem(typ + msg.line);
 	}
 
 	public void controlMessage(ControlMessage msg) {
 //		System.out.println(msg.msg);
 	}
-	
-	private class TrayMouse extends MouseAdapter {
-		@Override
-		public void mouseClicked(MouseEvent me) {
-			if (me.getButton() == MouseEvent.BUTTON1) {
-				dogControl.configure();
-			}
-		}
-	}
-
-	private class QuitDog implements ActionListener {
-		@Override
-		public void actionPerformed(ActionEvent arg0) {
-			dogControl.quitDog();
-		}
-	}
-	
-	private class ConfigureDog implements ActionListener {
-		@Override
-		public void actionPerformed(ActionEvent arg0) {
-			dogControl.configure();	
-		}
-	}
 
-	
-	private class PamdogHelp implements ActionListener {
-		@Override
-		public void actionPerformed(ActionEvent arg0) {
-			DogHelp.getHelp().showHelp();	
-		}
-	}
-	
-
-	
 }
@@ -0,0 +1,207 @@
+package pamdog;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.function.Consumer;
+
+/**
+ * Splits blocks of bytes into lines, working on the bytes so that nothing is
+ * decoded until a whole line is there. A line which is entirely within a block is
+ * decoded straight from it, only a line which runs across blocks is copied into a
+ * reusable line buffer. Lines longer than the line buffer are cut short, and the
+ * rest of the line is skipped without being decoded, so one runaway line can't use
+ * up memory. Lines end at \n, with any \r before it removed. <p>
+ * Newlines are found eight bytes at a time, which is several times quicker than
+ * checking one byte at a time.
+ */
+public class LineSplitter {
+
+	/**
+	 * Default maximum line length in bytes
+	 */
+	public static final int DEFAULTMAXLINE = 8192;
+
+	/**
+	 * Added to the end of lines which were cut short
+	 */
+	public static final String TRUNCATED = " ...[truncated]";
+
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+	private static final long LOWBITS = 0x0101010101010101L;
+
+	private static final long HIGHBITS = 0x8080808080808080L;
+
+	private Consumer<String> consumer;
+
+	private Charset charset;
+
+	private byte[] lineBuffer;
+
+	private int lineLength;
+
+	private boolean overflow;
+
+	/**
+	 * Only written by the thread feeding the splitter, but read by others
+	 */
+	private volatile long lineCount;
+
+	private volatile long byteCount;
+
+	private volatile long truncatedCount;
+
+	/**
+	 * @param consumer gets each line
+	 * @param charset charset the bytes were written in
+	 * @param maxLine maximum line length in bytes
+	 */
+	public LineSplitter(Consumer<String> consumer, Charset charset, int maxLine) {
+		this.consumer = consumer;
+		this.charset = charset;
+		lineBuffer = new byte[Math.max(1, maxLine)];
+	}
+
+	/**
+	 * Split a block of bytes into lines. Anything after the last \n is kept
+	 * for the next block.
+	 * @param block bytes
+	 * @param off first byte
+	 * @param n number of bytes
+	 */
+	public void feed(byte[] block, int off, int n) {
+		byteCount += n;
+		int end = off + n;
+		int start = off;
+		int i;
+		while ((i = indexOfNewline(block, start, end)) >= 0) {
+			if (lineLength == 0 && !overflow && i - start <= lineBuffer.length) {
+				emit(block, start, i - start, false);
+			}
+			else {
+				append(block, start, i - start);
+				emit(lineBuffer, 0, lineLength, overflow);
+				lineLength = 0;
+				overflow = false;
+			}
+			start = i + 1;
+		}
+		append(block, start, end - start);
+	}
+
+	/**
+	 * Find the next newline. Each eight bytes are xored with newlines, so a newline 
+	 * becomes a zero byte, and the lowest zero byte is found with the usual bit trick.
+	 * @param block bytes
+	 * @param from first index to search
+	 * @param end end of the bytes to search
+	 * @return index of the newline or -1
+	 */
+	private static int indexOfNewline(byte[] block, int from, int end) {
+		int i = from;
+		for (; i + 8 <= end; i += 8) {
+			long x = (long) LONGS.get(block, i) ^ NEWLINES;
+			long zeros = (x - LOWBITS) & ~x & HIGHBITS;
+			if (zeros != 0) {
+				return i + (Long.numberOfTrailingZeros(zeros) >>> 3);
+			}
+		}
+		for (; i < end; i++) {
+			if (block[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Count the newlines in part of an array, e.g. to count lines which 
+	 * aren't going to be split. 
+	 * @param block bytes
+	 * @param off first byte
+	 * @param n number of bytes
+	 * @return number of newlines
+	 */
+	public static int countNewlines(byte[] block, int off, int n) {
+		int count = 0;
+		int end = off + n;
+		int i = off;
+		while ((i = indexOfNewline(block, i, end)) >= 0) {
+			count++;
+			i++;
+		}
+		return count;
+	}
+
+	/**
+	 * Pass on anything left over as a last line, e.g. at the end of the stream.
+	 */
+	public void finish() {
+		if (lineLength > 0 || overflow) {
+			emit(lineBuffer, 0, lineLength, overflow);
+		}
+		lineLength = 0;
+		overflow = false;
+	}
+
+	/**
+	 * Copy as much as will fit into the line buffer
+	 */
+	private void append(byte[] block, int start, int len) {
+		int space = lineBuffer.length - lineLength;
+		if (len > space) {
+			overflow = true;
+			len = space;
+		}
+		if (len > 0) {
+			System.arraycopy(block, start, lineBuffer, lineLength, len);
+			lineLength += len;
+		}
+	}
+
+	private void emit(byte[] bytes, int start, int len, boolean truncated) {
+		if (len > 0 && bytes[start + len - 1] == '\r' && !truncated) {
+			len--;
+		}
+		String line = new String(bytes, start, len, charset);
+		if (truncated) {
+			line += TRUNCATED;
+			truncatedCount++;
+		}
+		lineCount++;
+		consumer.accept(line);
+	}
+
+	/**
+	 * @return number of lines passed on
+	 */
+	public long getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @return number of bytes fed in
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * @return number of lines which were cut short
+	 */
+	public long getTruncatedCount() {
+		return truncatedCount;
+	}
+
+	/**
+	 * @return maximum line length in bytes
+	 */
+	public int getMaxLine() {
+		return lineBuffer.length;
+	}
+
+}
@@ -1,29 +1,108 @@
 package pamdog;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.swing.SwingWorker;
+import Logging.DogLog;
 
 /**
- * Capture the output of PAMguard and log it to a file + optionally
- * display it in a window. 
+ * Capture the output of PAMguard and log it to a file. The stream is read a block
+ * at a time by this thread and handed to a LineConsumer thread, which splits the
+ * blocks into lines with a LineSplitter and passes them to the log. Both are run
+ * by OutputCapture. <p>
+ * Blocks come from a fixed pool, so memory use stays flat however fast PAMGuard
+ * writes. If the consumer falls behind and the pool runs out, blocks are spilled
+ * to a file instead of waiting for the consumer, so that PAMGuard never blocks on
+ * a full pipe. Once MAXSPILL bytes have been spilled for this launch, any more are
+ * dropped. Spilled and dropped lines are counted, and where they were left out is
+ * marked in the log. Lines the log itself has no room for are counted as dropped too.
  * @author Doug Gillespie
  *
  */
-public class LogCaptureThread extends SwingWorker<Integer, LogCaptureMessage> {
+public class LogCaptureThread implements CaptureReader {
+
+	/**
+	 * Read size. Reads at least as big as the process stream's own buffer
+	 * go straight to the pipe.
+	 */
+	private static final int BLOCKSIZE = 65536;
+
+	/**
+	 * Number of blocks which can wait for the consumer before spilling starts
+	 */
+	private static final int NBLOCKS = 16;
+
+	/**
+	 * Most bytes spilled to file per launch, after which they're dropped
+	 */
+	private static final long MAXSPILL = 256L * 1024 * 1024;
+
+	/**
+	 * A block of bytes read from the stream
+	 */
+	private static class Block {
+		byte[] data;
+		int length;
+		/**
+		 * Lines and bytes spilled and dropped between the previous block and this one
+		 */
+		long gapSpilledLines, gapSpilledBytes, gapDroppedLines, gapDroppedBytes;
+		Block(int size) {
+			data = new byte[size];
+		}
+	}
 
 	private Process pamProcess;
 	private InputStream procInputStream;
-	private BufferedReader bufferedReader;
 	private IdleFunction idleFunction;
 	private boolean isError;
+	private OutputCapture outputCapture;
+	private int launchId;
+	private volatile boolean cancelled;
+	private LineSplitter lineSplitter;
+	private RateMeter rateMeter = new RateMeter();
+	private ArrayBlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(NBLOCKS);
+	/**
+	 * Has room for every block and the end marker, so adding never fails.
+	 */
+	private ArrayBlockingQueue<Block> fullBlocks = new ArrayBlockingQueue<>(NBLOCKS + 1);
+	private Block spareBlock = new Block(BLOCKSIZE);
+	private long launchTime = System.currentTimeMillis();
+	private volatile File spillFile;
+	private FileChannel spillChannel;
+	private volatile long spilledLines, spilledBytes, droppedLines, droppedBytes;
+	/**
+	 * Lines split out but dropped by the log because it's writer wasn't keeping up
+	 */
+	private volatile long logDroppedLines;
+	private long gapSpilledLines, gapSpilledBytes, gapDroppedLines, gapDroppedBytes;
+	private LineConsumer lineConsumer = new LineConsumer();
+	/**
+	 * The reading thread and the consumer, this only counts as finished once both have.
+	 */
+	private AtomicInteger runningThreads = new AtomicInteger(2);
 
-	public LogCaptureThread(IdleFunction idleFunction, Process process, boolean isError) {
+	/**
+	 * @param outputCapture capture this is run by
+	 * @param idleFunction gets the lines
+	 * @param process PAMGuard process
+	 * @param isError read the error stream rather than the output
+	 * @param launchId id of the launch
+	 * @param maxLine maximum line length in bytes, longer lines are cut short
+	 */
+	public LogCaptureThread(OutputCapture outputCapture, IdleFunction idleFunction, Process process,
+			boolean isError, int launchId, int maxLine) {
+		this.outputCapture = outputCapture;
 		this.idleFunction = idleFunction;
+		this.launchId = launchId;
 		this.pamProcess = process;
 		this.isError = isError;
 		if (isError) {
@@ -32,48 +111,256 @@ public class LogCaptureThread extends SwingWorker<Integer, LogCaptureMessage> {
 		else {
 			procInputStream = process.getInputStream();
 		}
-		InputStreamReader isr = new InputStreamReader(procInputStream);
-		bufferedReader = new BufferedReader(isr);
+		// same charset the InputStreamReader used to use.
+		lineSplitter = new LineSplitter(line -> {
+			if (!cancelled && idleFunction.pamguardMessage(new LogCaptureMessage(isError, line)) == false) {
+				logDroppedLines++;
+			}
+		}, Charset.defaultCharset(), maxLine);
+		for (int i = 0; i < NBLOCKS; i++) {
+			freeBlocks.add(new Block(BLOCKSIZE));
+		}
+	}
+
+	/**
+	 * Stop passing on lines and close the stream. If the read is stuck
+	 * because something else still has the pipe open, the thread may not
+	 * end until it does, but nothing more from it gets logged.
+	 */
+	@Override
+	public void cancel() {
+		cancelled = true;
+		try {
+			procInputStream.close();
+		} catch (IOException e) {
+		}
 	}
 
-	/* (non-Javadoc)
-	 * @see javax.swing.SwingWorker#doInBackground()
+	/**
+	 * Read blocks and queue them for the consumer, or spill them if there
+	 * are none free.
 	 */
 	@Override
-	protected Integer doInBackground() {
-		String line;
-//		publish(new LogCaptureMessage("Enter log capture thread"));
+	public void run() {
 		try {
-			while ((line = bufferedReader.readLine()) != null) {
-				publish(new LogCaptureMessage(isError, line));
+			while (!cancelled) {
+				Block block = freeBlocks.poll();
+				boolean spill = block == null;
+				if (spill) {
+					block = spareBlock;
+				}
+				int n = procInputStream.read(block.data);
+				if (n < 0 || cancelled) {
+					break;
+				}
+				if (spill) {
+					spill(block.data, n);
+					continue;
+				}
+				block.length = n;
+				takeGap(block);
+				fullBlocks.add(block);
 			}
 		}
 		catch (IOException e) {
-			publish(new LogCaptureMessage(isError, e.getMessage()));
+			if (!cancelled) {
+				idleFunction.pamguardMessage(new LogCaptureMessage(isError, e.getMessage()));
+			}
+		}
+		finally {
+			closeSpill();
+			Block end = new Block(0);
+			end.length = -1;
+			takeGap(end);
+			fullBlocks.add(end);
+			threadFinished();
 		}
-		return null;
 	}
 
-	/* (non-Javadoc)
-	 * @see javax.swing.SwingWorker#done()
+	/**
+	 * Move the lines spilled and dropped since the last block onto the next one.
 	 */
-	@Override
-	protected void done() {
-//		System.out.println("Log capture complete");
-//		idleFunction.processEnded(pamProcess);
-		super.done();
+	private void takeGap(Block block) {
+		block.gapSpilledLines = gapSpilledLines;
+		block.gapSpilledBytes = gapSpilledBytes;
+		block.gapDroppedLines = gapDroppedLines;
+		block.gapDroppedBytes = gapDroppedBytes;
+		gapSpilledLines = gapSpilledBytes = gapDroppedLines = gapDroppedBytes = 0;
 	}
 
-	/* (non-Javadoc)
-	 * @see javax.swing.SwingWorker#process(java.util.List)
+	/**
+	 * Called as the reading thread and the consumer end. The consumer can end soon
+	 * after a cancel while the read is still stuck, so the capture is only told this
+	 * has finished once the reading thread has ended too.
 	 */
-	@Override
-	protected void process(List<LogCaptureMessage> chunks) {
-		for (LogCaptureMessage msg:chunks) {
-//			System.out.println("Pam: " + msg.line);
-			idleFunction.pamguardMessage(msg);
+	private void threadFinished() {
+		if (runningThreads.decrementAndGet() == 0) {
+			outputCapture.readerFinished(this);
+		}
+	}
+
+	/**
+	 * Write a block to the spill file, or drop it if too much has been
+	 * spilled already or the file can't be written.
+	 * @param data bytes
+	 * @param n number of bytes
+	 */
+	private void spill(byte[] data, int n) {
+		int lines = LineSplitter.countNewlines(data, 0, n);
+		if (spilledBytes + n <= MAXSPILL) {
+			try {
+				if (spillChannel == null) {
+					File folder = new File(DogLog.getLogFolder());
+					folder.mkdirs();
+					spillFile = new File(folder, String.format("PamguardSpill%s_%s.txt",
+							DogLog.getLogDate(launchTime), isError ? "err" : "out"));
+					spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(data, 0, n);
+				while (buffer.hasRemaining()) {
+					spillChannel.write(buffer);
+				}
+				spilledLines += lines;
+				spilledBytes += n;
+				gapSpilledLines += lines;
+				gapSpilledBytes += n;
+				return;
+			}
+			catch (IOException e) {
+				closeSpill();
+				// stop spilling, everything from now on gets dropped
+				spilledBytes = MAXSPILL;
+			}
+		}
+		droppedLines += lines;
+		droppedBytes += n;
+		gapDroppedLines += lines;
+		gapDroppedBytes += n;
+	}
+
+	private void closeSpill() {
+		if (spillChannel == null) {
+			return;
+		}
+		try {
+			spillChannel.close();
+		} catch (IOException e) {
+		}
+		spillChannel = null;
+	}
+
+	/**
+	 * Marker for where lines were left out ahead of a block, saying how many
+	 * went to the spill file and how many were dropped.
+	 */
+	private String gapMessage(Block block) {
+		StringBuilder message = new StringBuilder("[lines not logged since the log couldn't keep up: ");
+		if (block.gapSpilledBytes > 0) {
+			message.append(String.format("%d lines (%d bytes) spilled to %s", block.gapSpilledLines,
+					block.gapSpilledBytes, spillFile));
+		}
+		if (block.gapDroppedBytes > 0) {
+			if (block.gapSpilledBytes > 0) {
+				message.append(", ");
+			}
+			message.append(String.format("%d lines (%d bytes) dropped", block.gapDroppedLines,
+					block.gapDroppedBytes));
+		}
+		return message.append(']').toString();
+	}
+
+	/**
+	 * Takes blocks from the reading thread, splits them into lines and passes
+	 * the lines to the log.
+	 */
+	private class LineConsumer implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Block block = fullBlocks.poll(200, TimeUnit.MILLISECONDS);
+					if (block == null) {
+						if (cancelled) {
+							break;
+						}
+						continue;
+					}
+					if (block.gapSpilledBytes + block.gapDroppedBytes > 0 && !cancelled) {
+						// end the line before the gap, rather than joining it to the one after.
+						lineSplitter.finish();
+						idleFunction.pamguardMessage(new LogCaptureMessage(isError, gapMessage(block)));
+					}
+					if (block.length < 0) {
+						if (!cancelled) {
+							lineSplitter.finish();
+						}
+						break;
+					}
+					if (!cancelled) {
+						lineSplitter.feed(block.data, 0, block.length);
+						rateMeter.update(lineSplitter.getLineCount(), lineSplitter.getByteCount());
+					}
+					freeBlocks.add(block);
+				}
+			}
+			catch (InterruptedException e) {
+			}
+			finally {
+				threadFinished();
+			}
 		}
+
+	}
+
+	/**
+	 * @return the thread which splits what's read into lines and logs them.
+	 * Has to be run alongside this one.
+	 */
+	public Runnable getLineConsumer() {
+		return lineConsumer;
+	}
+
+	@Override
+	public int getLaunchId() {
+		return launchId;
+	}
+
+	@Override
+	public RateMeter getRateMeter() {
+		return rateMeter;
+	}
+
+	@Override
+	public String getSummary() {
+		return String.format("PAMGuard %s: %d lines, %d bytes, peak %.0f lines/s, %d lines cut short at %d bytes, "
+				+ "%d lines (%d bytes) spilled, %d lines (%d bytes) dropped, %d lines dropped by the log",
+				isError ? "errors" : "output", lineSplitter.getLineCount(), lineSplitter.getByteCount(),
+				rateMeter.getPeakLinesPerSecond(), lineSplitter.getTruncatedCount(), lineSplitter.getMaxLine(),
+				spilledLines, spilledBytes, droppedLines, droppedBytes, logDroppedLines);
 	}
 
+	/**
+	 * @return the splitter, with the line, byte and truncated line counts
+	 */
+	public LineSplitter getLineSplitter() {
+		return lineSplitter;
+	}
+
+	/**
+	 * @return lines spilled to file this launch because the log couldn't keep up
+	 */
+	public long getSpilledLines() {
+		return spilledLines;
+	}
+
+	/**
+	 * @return lines dropped this launch, either once the spill limit was reached
+	 * or by the log
+	 */
+	public long getDroppedLines() {
+		return droppedLines + logDroppedLines;
+	}
 
 }
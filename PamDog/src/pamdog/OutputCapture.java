@@ -0,0 +1,223 @@
+package pamdog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Logging.DogLog;
+
+/**
+ * Runs the threads which capture the output and errors from PAMGuard, either 
+ * reading them line by line into the PAMGuard log or pumping them to file, 
+ * depending on the CaptureMode. Reading lines takes two threads per stream, 
+ * one reading and one splitting and logging, see LogCaptureThread. These
+ * have their own executor, so however many readers get stuck (e.g. an orphaned
+ * child process of a killed PAMGuard keeping a pipe open) there is always a
+ * thread for the next launch and PAMGuard never blocks on a full pipe.
+ * Each launch gets it's own set of readers and when PAMGuard is launched again
+ * the previous set are cancelled.
+ */
+public class OutputCapture {
+
+	private IdleFunction idleFunction;
+
+	private DogLog commandLog;
+
+	private ExecutorService executor;
+
+	private int launchId;
+
+	private List<CaptureReader> currentReaders = new ArrayList<>();
+
+	private AtomicInteger activeReaders = new AtomicInteger();
+
+	public OutputCapture(IdleFunction idleFunction, DogLog commandLog) {
+		this.idleFunction = idleFunction;
+		this.commandLog = commandLog;
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PAMGuard capture " + threadCount.incrementAndGet());
+				// so that a stuck reader can't hold up the dog exiting.
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Cancel the readers from the previous launch and start capturing the
+	 * output and errors from a newly launched PAMGuard process line by line.
+	 * @param process PAMGuard process
+	 */
+	public void startCapture(Process process) {
+		startCapture(process, CaptureMode.LINES, null, null);
+	}
+
+	/**
+	 * Cancel the readers from the previous launch and start capturing the
+	 * output and errors from a newly launched PAMGuard process the way the 
+	 * parameters say. 
+	 * @param process PAMGuard process
+	 * @param params parameters with the capture mode, output file and patterns
+	 */
+	public void startCapture(Process process, DogParams params) {
+		String file = params.getOutputFile();
+		startCapture(process, params.getCaptureMode(), 
+				file == null || file.isBlank() ? null : new File(file), 
+				splitPatterns(params.getCapturePatterns()));
+	}
+
+	/**
+	 * @param patterns patterns separated by ;
+	 * @return list of the patterns which aren't empty
+	 */
+	private static List<String> splitPatterns(String patterns) {
+		List<String> list = new ArrayList<>();
+		if (patterns != null) {
+			for (String pattern:patterns.split(";")) {
+				if (pattern.isEmpty() == false) {
+					list.add(pattern);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Cancel the readers from the previous launch and start capturing the
+	 * output and errors from a newly launched PAMGuard process.
+	 * @param process PAMGuard process
+	 * @param mode how to capture. For PUMP, errors must be redirected to output. 
+	 * REDIRECT doesn't need any capture, so nothing is started. 
+	 * @param file file to pump to, or null for the daily output files
+	 * @param patterns lines containing these are logged when pumping
+	 */
+	public synchronized void startCapture(Process process, CaptureMode mode, File file, List<String> patterns) {
+		cancelCapture();
+		if (activeReaders.get() > 0) {
+			commandLog.logItem("%d output readers from earlier launches still blocked", activeReaders.get());
+		}
+		launchId++;
+		if (mode == CaptureMode.REDIRECT) {
+			return;
+		}
+		if (mode == CaptureMode.PUMP) {
+			OutputPump pump = new OutputPump(this, idleFunction, commandLog, process, file, 
+					patterns == null ? List.of() : patterns, launchId, LineSplitter.DEFAULTMAXLINE);
+			currentReaders.add(pump);
+			activeReaders.incrementAndGet();
+			executor.execute(pump);
+			return;
+		}
+		LogCaptureThread logThread = new LogCaptureThread(this, idleFunction, process, false, launchId, LineSplitter.DEFAULTMAXLINE);
+		LogCaptureThread errThread = new LogCaptureThread(this, idleFunction, process, true, launchId, LineSplitter.DEFAULTMAXLINE);
+		currentReaders.add(logThread);
+		currentReaders.add(errThread);
+		activeReaders.addAndGet(2);
+		executor.execute(logThread);
+		executor.execute(logThread.getLineConsumer());
+		executor.execute(errThread);
+		executor.execute(errThread.getLineConsumer());
+	}
+
+	/**
+	 * Cancel the readers for the current launch. Anything they read
+	 * after this gets thrown away.
+	 */
+	public synchronized void cancelCapture() {
+		for (CaptureReader reader:currentReaders) {
+			reader.cancel();
+		}
+		currentReaders.clear();
+	}
+
+	/**
+	 * Called by a reader when it has finished.
+	 * @param reader reader
+	 */
+	void readerFinished(CaptureReader reader) {
+		activeReaders.decrementAndGet();
+		if (reader.getLaunchId() == getLaunchId()) {
+			commandLog.logItem(reader.getSummary());
+		}
+	}
+
+	/**
+	 * @return lines per second being read for the current launch, only 
+	 * counting lines logged when output is pumped to file
+	 */
+	public synchronized double getLinesPerSecond() {
+		double rate = 0;
+		for (CaptureReader reader:currentReaders) {
+			rate += reader.getRateMeter().getLinesPerSecond();
+		}
+		return rate;
+	}
+
+	/**
+	 * @return lines spilled to file for the current launch because the log 
+	 * couldn't keep up
+	 */
+	public synchronized long getSpilledLines() {
+		long n = 0;
+		for (CaptureReader reader:currentReaders) {
+			if (reader instanceof LogCaptureThread) {
+				n += ((LogCaptureThread) reader).getSpilledLines();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return lines dropped for the current launch, once the spill limit was reached or by the log
+	 */
+	public synchronized long getDroppedLines() {
+		long n = 0;
+		for (CaptureReader reader:currentReaders) {
+			if (reader instanceof LogCaptureThread) {
+				n += ((LogCaptureThread) reader).getDroppedLines();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return bytes per second being read for the current launch
+	 */
+	public synchronized double getBytesPerSecond() {
+		double rate = 0;
+		for (CaptureReader reader:currentReaders) {
+			rate += reader.getRateMeter().getBytesPerSecond();
+		}
+		return rate;
+	}
+
+	/**
+	 * @return the number of readers, from all launches, which haven't finished.
+	 */
+	public int getActiveReaderCount() {
+		return activeReaders.get();
+	}
+
+	/**
+	 * @return id of the current launch, incremented each time PAMGuard is launched.
+	 */
+	public synchronized int getLaunchId() {
+		return launchId;
+	}
+
+	/**
+	 * Cancel all readers and stop the executor.
+	 */
+	public void shutdown() {
+		cancelCapture();
+		executor.shutdownNow();
+	}
+
+}
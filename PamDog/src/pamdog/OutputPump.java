@@ -0,0 +1,325 @@
+package pamdog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import Logging.DogLog;
+
+/**
+ * Copies PAMGuard's output to file a block at a time, without splitting it into
+ * lines, making Strings or going through the PAMGuard log. Blocks are read into
+ * one reusable array and written with a FileChannel opened for append. Unless a
+ * fixed file is given, output goes to the day's PAMGuard output file and moves to
+ * a new one at midnight. <p>
+ * Optionally each block is scanned for a few patterns and only the lines containing
+ * them go into the PAMGuard log, so that errors can still be counted and sent out
+ * with the telemetry. A line split across two blocks is only matched if the pattern
+ * is entirely in one of them, and lines longer than the maximum line length are
+ * cut down to that length around the match. <p>
+ * If the file can't be written, e.g. the disk is full, the error is logged once and
+ * output carries on being read and thrown away, so that PAMGuard doesn't block
+ * on a full pipe. 
+ */
+public class OutputPump implements CaptureReader {
+
+	/**
+	 * Start of the name of the daily PAMGuard output files
+	 */
+	public static final String FILETITLE = "PamguardOutput";
+
+	private static final int BLOCKSIZE = 65536;
+
+	private static final long ONEDAY = 24 * 3600000L;
+
+	private OutputCapture outputCapture;
+
+	private IdleFunction idleFunction;
+
+	private DogLog commandLog;
+
+	private InputStream procInputStream;
+
+	private File fixedFile;
+
+	private byte[][] patterns;
+
+	private int launchId;
+
+	private volatile boolean cancelled;
+
+	private FileChannel fileChannel;
+
+	private File currentFile;
+
+	private long fileDay = -1;
+
+	private int maxLine;
+
+	/**
+	 * Set after a failed write, after which output is thrown away.
+	 */
+	private volatile IOException writeError;
+
+	private volatile long bytesPumped;
+
+	private volatile long bytesDropped;
+
+	private volatile int linesTapped;
+
+	private volatile int linesCut;
+
+	private RateMeter rateMeter = new RateMeter();
+
+	/**
+	 * @param outputCapture capture this is run by
+	 * @param idleFunction gets lines containing the patterns
+	 * @param commandLog log for errors
+	 * @param process PAMGuard process, with errors redirected to output
+	 * @param fixedFile file to write to, or null for the daily output files
+	 * @param patterns lines containing any of these are logged, may be empty
+	 * @param launchId id of the launch
+	 * @param maxLine maximum length in bytes of a logged line, longer lines are cut short
+	 */
+	public OutputPump(OutputCapture outputCapture, IdleFunction idleFunction, DogLog commandLog, Process process,
+			File fixedFile, List<String> patterns, int launchId, int maxLine) {
+		this.outputCapture = outputCapture;
+		this.idleFunction = idleFunction;
+		this.commandLog = commandLog;
+		this.fixedFile = fixedFile;
+		this.launchId = launchId;
+		this.maxLine = Math.max(1, maxLine);
+		procInputStream = process.getInputStream();
+		// PAMGuard writes in the platform charset, so that's what to look for
+		this.patterns = new byte[patterns.size()][];
+		for (int i = 0; i < this.patterns.length; i++) {
+			this.patterns[i] = patterns.get(i).getBytes(Charset.defaultCharset());
+		}
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+		try {
+			procInputStream.close();
+		} catch (IOException e) {
+		}
+	}
+
+	@Override
+	public void run() {
+		/*
+		 * Reads of at least the stream's own buffer size go straight to the pipe,
+		 * so this array is the only copy before the write.
+		 */
+		byte[] block = new byte[BLOCKSIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		try {
+			int n;
+			while ((n = procInputStream.read(block)) >= 0 && !cancelled) {
+				if (n == 0) {
+					continue;
+				}
+				if (patterns.length > 0) {
+					tap(block, n);
+				}
+				if (writeError == null) {
+					write(buffer, n);
+				}
+				else {
+					bytesDropped += n;
+				}
+				rateMeter.update(linesTapped, bytesPumped + bytesDropped);
+			}
+		}
+		catch (IOException e) {
+			if (!cancelled) {
+				commandLog.logItem("PAMGuard output error: %s", e.getMessage());
+			}
+		}
+		finally {
+			closeChannel();
+			outputCapture.readerFinished(this);
+		}
+	}
+
+	/**
+	 * Write a block to file. If it fails, log it and close the file, and throw
+	 * away everything from then on. 
+	 * @param buffer buffer wrapping the block
+	 * @param n number of bytes in the block
+	 */
+	private void write(ByteBuffer buffer, int n) {
+		buffer.clear().limit(n);
+		try {
+			FileChannel channel = getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			bytesPumped += n;
+		}
+		catch (IOException e) {
+			writeError = e;
+			bytesDropped += buffer.remaining();
+			bytesPumped += buffer.position();
+			commandLog.logItem("PAMGuard output error writing %s: %s, output will be thrown away", 
+					currentFile, e.getMessage());
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Get the channel for the file output should go to now, opening a new file
+	 * if the day has changed.
+	 * @return channel
+	 * @throws IOException if the file can't be opened
+	 */
+	private FileChannel getChannel() throws IOException {
+		long day = fixedFile == null ? System.currentTimeMillis() / ONEDAY : 0;
+		if (fileChannel != null && day == fileDay) {
+			return fileChannel;
+		}
+		closeChannel();
+		currentFile = fixedFile != null ? fixedFile : DogLog.getDailyFile(FILETITLE, day * ONEDAY);
+		fileChannel = FileChannel.open(currentFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileDay = day;
+		return fileChannel;
+	}
+
+	private void closeChannel() {
+		if (fileChannel == null) {
+			return;
+		}
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+		}
+		fileChannel = null;
+	}
+
+	/**
+	 * Find lines in a block containing any of the patterns and log them.
+	 * @param block bytes read
+	 * @param n number of bytes
+	 */
+	private void tap(byte[] block, int n) {
+		int pos = 0;
+		while (pos < n) {
+			int match = n;
+			for (byte[] pattern:patterns) {
+				int at = indexOf(block, n, pos, match, pattern);
+				if (at >= 0) {
+					match = at;
+				}
+			}
+			if (match == n) {
+				return;
+			}
+			int start = match;
+			while (start > 0 && block[start-1] != '\n') {
+				start--;
+			}
+			int end = match;
+			while (end < n && block[end] != '\n') {
+				end++;
+			}
+			int len = end - start;
+			if (len > 0 && block[end-1] == '\r') {
+				len--;
+			}
+			if (len > maxLine) {
+				// keep the match in what's logged
+				int from = Math.max(start, Math.min(match - maxLine / 2, start + len - maxLine));
+				len = maxLine;
+				start = from;
+				linesCut++;
+			}
+			idleFunction.pamguardMessage(new LogCaptureMessage(false,
+					new String(block, start, len, Charset.defaultCharset())));
+			linesTapped++;
+			pos = end + 1;
+		}
+	}
+
+	/**
+	 * Find a pattern in part of an array
+	 * @param block array
+	 * @param n number of bytes in the array
+	 * @param from first index to search
+	 * @param to pattern has to start before this index
+	 * @param pattern pattern
+	 * @return index of the pattern or -1
+	 */
+	private static int indexOf(byte[] block, int n, int from, int to, byte[] pattern) {
+		if (pattern.length == 0) {
+			return -1;
+		}
+		byte first = pattern[0];
+		int last = Math.min(to, n - pattern.length + 1);
+		outer:
+		for (int i = from; i < last; i++) {
+			if (block[i] != first) {
+				continue;
+			}
+			for (int j = 1; j < pattern.length; j++) {
+				if (block[i+j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public int getLaunchId() {
+		return launchId;
+	}
+
+	@Override
+	public RateMeter getRateMeter() {
+		return rateMeter;
+	}
+
+	@Override
+	public String getSummary() {
+		if (currentFile == null) {
+			return "PAMGuard output: nothing written";
+		}
+		String summary = String.format("PAMGuard output: %d bytes written to %s, %d lines logged, %d lines cut short at %d bytes",
+				bytesPumped, currentFile, linesTapped, linesCut, maxLine);
+		IOException e = writeError;
+		if (e != null) {
+			summary += String.format(", %d bytes thrown away after write error: %s", bytesDropped, e.getMessage());
+		}
+		return summary;
+	}
+
+	/**
+	 * @return number of bytes written to file
+	 */
+	public long getBytesPumped() {
+		return bytesPumped;
+	}
+
+	/**
+	 * @return number of bytes thrown away because the file couldn't be written
+	 */
+	public long getBytesDropped() {
+		return bytesDropped;
+	}
+
+	/**
+	 * @return number of lines containing a pattern which were logged
+	 */
+	public int getLinesTapped() {
+		return linesTapped;
+	}
+
+}
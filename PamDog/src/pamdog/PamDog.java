@@ -1,6 +1,6 @@
 package pamdog;
 
-import javax.swing.UIManager;
+import gui.DogTrayIcon;
 
 public class PamDog {
 
@@ -9,38 +9,39 @@ public class PamDog {
 		boolean runGUI = true;
 		String configPath = null;
 		
-		try {
-//		    for (LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
-//		        if ("Nimbus".equals(info.getName())) {
-//		            UIManager.setLookAndFeel(info.getClassName());
-//		            break;
-//		        }
-//		    }
-			if (System.getProperty("os.name").startsWith("windows")) {
-				UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
-		    }
-			if (args != null) {
-				int nArgs = args.length;
-				int iArg = 0;
-				String anArg;
-				while (iArg < nArgs) {
-					anArg = args[iArg++];
-					if(anArg.equals("-nogui")) {
-						runGUI = false;
-					}
-					if(anArg.equals("-configPath")) {
-						configPath = args[iArg++];
-					}
+		if (args != null) {
+			int nArgs = args.length;
+			int iArg = 0;
+			String anArg;
+			while (iArg < nArgs) {
+				anArg = args[iArg++];
+				if(anArg.equals("-nogui")) {
+					runGUI = false;
+				}
+				if(anArg.equals("-configPath")) {
+					configPath = args[iArg++];
 				}
 			}
-			if(!System.getProperty("os.name").equals("Linux")) {
-				
-			}
-		} catch (Exception e) {
-		    // If Nimbus is not available, you can set the GUI to another look and feel.
+		}
+		/*
+		 * Only touch AWT / Swing if there is a GUI, so that headless 
+		 * starts don't load any of it. 
+		 */
+		if (runGUI) {
+			DogTrayIcon.setLookAndFeel();
 		}
 		
 		DogControl dogControl = new DogControl(runGUI,configPath);
+		DogTrayIcon trayIcon = null;
+		if (runGUI) {
+			trayIcon = new DogTrayIcon(dogControl);
+		}
+		
+		dogControl.run();
+		
+		if (trayIcon != null) {
+			trayIcon.destroy();
+		}
 		
 	}
 
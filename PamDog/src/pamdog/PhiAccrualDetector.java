@@ -0,0 +1,141 @@
+package pamdog;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.). Rather than a yes / no
+ * answer after a fixed number of missed replies, this keeps a history of the
+ * intervals between heartbeats (replies from PAMGuard) and gives a suspicion
+ * level phi for the time since the last one. phi = 1 means roughly a 10% chance
+ * that the heartbeat is just late, phi = 2 a 1% chance, phi = 3 0.1%, etc. A
+ * PAMGuard which is busy and replies irregularly builds up a wide distribution of
+ * intervals and so takes longer to become suspect than one which has always
+ * replied like clockwork and then suddenly stops.
+ */
+public class PhiAccrualDetector {
+
+	private double[] intervals;
+
+	private int nIntervals;
+
+	private int nextInterval;
+
+	private double intervalSum, intervalSquaredSum;
+
+	private long lastHeartbeat;
+
+	private double minStdDeviation;
+
+	private double acceptablePause;
+
+	private double firstHeartbeatEstimate;
+
+	/**
+	 *
+	 * @param windowSize number of intervals to keep
+	 * @param minStdDeviation minimum standard deviation of intervals, millis
+	 * @param acceptablePause extra time allowed on top of the mean interval, millis
+	 * @param firstHeartbeatEstimate interval to assume when there is only a single heartbeat, millis
+	 */
+	public PhiAccrualDetector(int windowSize, double minStdDeviation, double acceptablePause, double firstHeartbeatEstimate) {
+		intervals = new double[windowSize];
+		this.minStdDeviation = minStdDeviation;
+		this.acceptablePause = acceptablePause;
+		this.firstHeartbeatEstimate = firstHeartbeatEstimate;
+	}
+
+	/**
+	 * Clear all history, e.g. when a new PAMGuard instance is launched.
+	 */
+	public synchronized void reset() {
+		nIntervals = 0;
+		nextInterval = 0;
+		intervalSum = intervalSquaredSum = 0;
+		lastHeartbeat = 0;
+	}
+
+	/**
+	 * Record a heartbeat now.
+	 */
+	public void heartbeat() {
+		heartbeat(System.currentTimeMillis());
+	}
+
+	/**
+	 * Record a heartbeat
+	 * @param timeMillis time of heartbeat
+	 */
+	public synchronized void heartbeat(long timeMillis) {
+		if (lastHeartbeat == 0) {
+			// first one, so guess an interval to have something to work with.
+			addInterval(firstHeartbeatEstimate);
+			addInterval(firstHeartbeatEstimate + minStdDeviation);
+		}
+		else if (timeMillis > lastHeartbeat) {
+			addInterval(timeMillis - lastHeartbeat);
+		}
+		lastHeartbeat = timeMillis;
+	}
+
+	private void addInterval(double interval) {
+		if (nIntervals == intervals.length) {
+			double old = intervals[nextInterval];
+			intervalSum -= old;
+			intervalSquaredSum -= old * old;
+		}
+		else {
+			nIntervals++;
+		}
+		intervals[nextInterval] = interval;
+		intervalSum += interval;
+		intervalSquaredSum += interval * interval;
+		nextInterval = (nextInterval + 1) % intervals.length;
+	}
+
+	/**
+	 * @return true if there has been at least one heartbeat
+	 */
+	public synchronized boolean hasHistory() {
+		return lastHeartbeat != 0;
+	}
+
+	/**
+	 * @return the suspicion level now
+	 */
+	public double phi() {
+		return phi(System.currentTimeMillis());
+	}
+
+	/**
+	 * Get the suspicion level. If there have never been any heartbeats this is infinite.
+	 * @param timeMillis current time
+	 * @return suspicion level phi
+	 */
+	public synchronized double phi(long timeMillis) {
+		if (lastHeartbeat == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double mean = intervalSum / nIntervals;
+		double variance = intervalSquaredSum / nIntervals - mean * mean;
+		double stdDeviation = Math.max(minStdDeviation, Math.sqrt(Math.max(0, variance)));
+		double timeDiff = timeMillis - lastHeartbeat;
+		/*
+		 * Logistic approximation to the normal cumulative distribution, which
+		 * doesn't lose all precision in the tail the way 1-cdf would.
+		 */
+		double y = (timeDiff - (mean + acceptablePause)) / stdDeviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (y > 0) {
+			return -Math.log10(e / (1. + e));
+		}
+		else {
+			return -Math.log10(1. - 1. / (1. + e));
+		}
+	}
+
+	/**
+	 * @return time of the last heartbeat or 0 if there hasn't been one
+	 */
+	public synchronized long getLastHeartbeat() {
+		return lastHeartbeat;
+	}
+
+}
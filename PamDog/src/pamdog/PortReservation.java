@@ -0,0 +1,98 @@
+package pamdog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A UDP port held for PAMGuard to use for it's control commands. The preferred
+ * port is tried first and if that's taken, e.g. by a PAMGuard which didn't shut
+ * down cleanly, the OS is asked for a free ephemeral port, so it's never more than
+ * two binds rather than working through a range of ports one at a time.<p>
+ * The port stays bound until it's released. Release it immediately before launching
+ * PAMGuard to keep the window in which something else can take it as short as possible.
+ */
+public class PortReservation {
+
+	private DatagramChannel channel;
+
+	private int port;
+
+	private boolean preferred;
+
+	private PortReservation(DatagramChannel channel, boolean preferred) throws IOException {
+		this.channel = channel;
+		this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		this.preferred = preferred;
+	}
+
+	/**
+	 * Reserve a port for PAMGuard.
+	 * @param preferredPort port to try first, or 0 to let the OS choose
+	 * @return reservation holding the port
+	 * @throws IOException if no port could be bound at all
+	 */
+	public static PortReservation reserve(int preferredPort) throws IOException {
+		if (preferredPort > 0) {
+			DatagramChannel channel = bind(preferredPort);
+			if (channel != null) {
+				return new PortReservation(channel, true);
+			}
+		}
+		DatagramChannel channel = bind(0);
+		if (channel == null) {
+			throw new IOException("Unable to bind any UDP port");
+		}
+		return new PortReservation(channel, false);
+	}
+
+	/**
+	 * Bind a port the same way PAMGuard will, on all addresses, so that if this
+	 * works PAMGuard's bind will too once it's released.
+	 * @param port port, or 0 for any free port
+	 * @return bound channel or null if the port is taken
+	 */
+	private static DatagramChannel bind(int port) {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, false);
+			channel.bind(new InetSocketAddress(port));
+			return channel;
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return the reserved port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return true if the preferred port was free, false if it's an OS assigned port
+	 */
+	public boolean isPreferred() {
+		return preferred;
+	}
+
+	/**
+	 * Release the port so that PAMGuard can bind it.
+	 */
+	public void release() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+}
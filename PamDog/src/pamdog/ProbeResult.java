@@ -0,0 +1,65 @@
+package pamdog;
+
+/**
+ * Result of a single health probe of PAMGuard, which finds out in one exchange
+ * if it's there at all, what it's run status is and, if it sent one, it's
+ * summary string.
+ */
+public class ProbeResult {
+
+	private long probeTime;
+
+	private boolean alive;
+
+	private int status;
+
+	private String summary;
+
+	/**
+	 * @param alive true if PAMGuard replied to anything
+	 * @param status run status, one of the UdpCommands PAM_ values, or -1 if unknown
+	 * @param summary summary string or null
+	 */
+	public ProbeResult(boolean alive, int status, String summary) {
+		this.probeTime = System.currentTimeMillis();
+		this.alive = alive;
+		this.status = status;
+		this.summary = summary;
+	}
+
+	/**
+	 * @return the time of the probe
+	 */
+	public long getProbeTime() {
+		return probeTime;
+	}
+
+	/**
+	 * @return true if PAMGuard replied to anything
+	 */
+	public boolean isAlive() {
+		return alive;
+	}
+
+	/**
+	 * @return the status, or -1 if it's unknown
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if PAMGuard has finished initialising
+	 */
+	public boolean isInitialised() {
+		return status >= 0 && status != UdpCommands.PAM_INITIALISING;
+	}
+
+	/**
+	 * @return the summary string, or null if PAMGuard didn't send one
+	 */
+	public String getSummary() {
+		return summary;
+	}
+
+}
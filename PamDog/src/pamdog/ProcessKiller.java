@@ -0,0 +1,339 @@
+package pamdog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import Logging.DogLog;
+
+/**
+ * Kills PAMGuard and anything it started. The process launched and all it's
+ * descendants are tracked by ProcessHandle from the launch, so they can still be
+ * found if the launched process (e.g. a shell on Linux) has gone and left PAMGuard
+ * running. Killing goes in stages, each waiting on onExit() with a deadline, so
+ * it moves on as soon as everything has gone rather than sleeping for fixed times:
+ * <br>ask PAMGuard to stop and exit,
+ * <br>destroy() everything still alive,
+ * <br>destroyForcibly() everything still alive.
+ * <br>How long each stage took is logged. <p>
+ * The processes being tracked are also written to a pid file in the settings folder,
+ * so that if the watchdog is restarted while PAMGuard is still running, e.g. after
+ * the watchdog crashed, they can still be found. Each pid goes with the time the
+ * process started, so a pid which has since been reused by something else is ignored.
+ * The pid file is named after the UDP port or control socket set in the parameters, 
+ * so that several watchdogs sharing a settings folder each only find their own PAMGuard.
+ * If there's no pid file either, processes are found by the name given to them on
+ * the command line together with that port or socket, so that only a PAMGuard which
+ * this watchdog's settings would have launched is found. This last resort doesn't work
+ * on Windows, where the command line of a process the JVM didn't start itself isn't available.
+ */
+public class ProcessKiller {
+
+	/**
+	 * Time allowed for PAMGuard to exit when asked to
+	 */
+	private static final long EXITWAIT = 2000;
+
+	/**
+	 * Time allowed for processes to exit after destroy()
+	 */
+	private static final long DESTROYWAIT = 1500;
+
+	/**
+	 * Time allowed for processes to exit after destroyForcibly()
+	 */
+	private static final long FORCEWAIT = 1000;
+
+	private DogControl dogControl;
+
+	private DogLog commandLog;
+
+	private ProcessHandle root;
+
+	private Set<ProcessHandle> tracked = new LinkedHashSet<>();
+
+	/**
+	 * Pid file last written, so it can be tidied up if the parameters change
+	 * and the pid file goes with them.
+	 */
+	private File savedPidFile;
+
+	public ProcessKiller(DogControl dogControl, DogLog commandLog) {
+		this.dogControl = dogControl;
+		this.commandLog = commandLog;
+	}
+
+	/**
+	 * @return pid file for this watchdog's PAMGuard, named after the control
+	 * socket if there is one, otherwise the UDP port.
+	 */
+	private File getPidFile() {
+		DogParams params = dogControl.getParams();
+		String socket = params.getControlSocket();
+		String instance;
+		if (socket != null && socket.isBlank() == false) {
+			instance = "socket" + Integer.toHexString(socket.hashCode());
+		}
+		else {
+			instance = "port" + params.getUdpPort();
+		}
+		return new File(ConfigSettings.getPamguardFolder(), "PamDogPamguard-" + instance + ".pid");
+	}
+
+	/**
+	 * Start tracking a newly launched process, forgetting any old ones.
+	 * @param process launched process
+	 */
+	public synchronized void track(Process process) {
+		tracked.clear();
+		root = process.toHandle();
+		tracked.add(root);
+		refresh();
+	}
+
+	/**
+	 * Add any new descendants of the launched process. Call once PAMGuard is
+	 * up, when it's started everything it's going to.
+	 */
+	public synchronized void refresh() {
+		if (root != null) {
+			root.descendants().forEach(tracked::add);
+			savePids();
+		}
+	}
+
+	/**
+	 * Write the pid and start time of each tracked process to the pid file,
+	 * one process per line.
+	 */
+	private void savePids() {
+		List<String> lines = new ArrayList<>();
+		for (ProcessHandle h:tracked) {
+			lines.add(h.pid() + " " + h.info().startInstant().map(Instant::toEpochMilli).orElse(0L));
+		}
+		File pidFile = getPidFile();
+		if (savedPidFile != null && savedPidFile.equals(pidFile) == false) {
+			savedPidFile.delete();
+		}
+		try {
+			Files.write(pidFile.toPath(), lines);
+			savedPidFile = pidFile;
+		} catch (IOException e) {
+			commandLog.logItem("Unable to write pid file %s: %s", pidFile, e.getMessage());
+		}
+	}
+
+	/**
+	 * Find processes from the pid file left by an earlier run of the watchdog.
+	 * Ones which have gone, or whose pid now belongs to a process started at a
+	 * different time, are left out.
+	 */
+	private void findByPidFile() {
+		File pidFile = getPidFile();
+		if (pidFile.exists() == false) {
+			return;
+		}
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(pidFile.toPath());
+		} catch (IOException e) {
+			commandLog.logItem("Unable to read pid file %s: %s", pidFile, e.getMessage());
+			return;
+		}
+		for (String line:lines) {
+			String[] parts = line.trim().split(" ");
+			if (parts.length < 2) {
+				continue;
+			}
+			long pid, started;
+			try {
+				pid = Long.parseLong(parts[0]);
+				started = Long.parseLong(parts[1]);
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			ProcessHandle.of(pid).filter(h -> started == 0 ||
+					h.info().startInstant().map(t -> t.toEpochMilli() == started).orElse(true))
+			.ifPresent(h -> {
+				commandLog.logItem("Found PAMGuard process pid %d from %s", h.pid(), pidFile.getName());
+				tracked.add(h);
+				h.descendants().forEach(tracked::add);
+			});
+		}
+	}
+
+	/**
+	 * Kill everything being tracked, starting by asking PAMGuard to exit.
+	 * @param transport control commands to PAMGuard
+	 * @return true if everything has gone
+	 */
+	public synchronized boolean kill(DogTransport transport) {
+		refresh();
+		if (tracked.isEmpty()) {
+			findByPidFile();
+		}
+		if (tracked.isEmpty()) {
+			findByName();
+		}
+		long start = System.currentTimeMillis();
+		// ask nicely first, stop then exit
+		CompletableFuture<String> exitReply = transport.sendCommandAsync(UdpCommands.STOP, 500)
+				.handle((ans, e) -> transport.sendCommandAsync(UdpCommands.EXIT, 1000)).thenCompose(f -> f);
+		if (tracked.isEmpty()) {
+			commandLog.logItem("No PAMGuard process found, only able to tell it to exit");
+			try {
+				exitReply.get(EXITWAIT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			}
+		}
+		boolean gone = waitForExit(EXITWAIT);
+		start = report("Exit command", start, gone);
+		if (gone == false) {
+			gone = destroyAll(false, DESTROYWAIT);
+			start = report("destroy", start, gone);
+		}
+		if (gone == false) {
+			gone = destroyAll(true, FORCEWAIT);
+			report("destroyForcibly", start, gone);
+		}
+		if (gone == false) {
+			commandLog.logItem("Error - processes may still be active: " + alive());
+		}
+		tracked.clear();
+		root = null;
+		if (gone) {
+			getPidFile().delete();
+			if (savedPidFile != null) {
+				savedPidFile.delete();
+				savedPidFile = null;
+			}
+		}
+		return gone;
+	}
+
+	/**
+	 * Destroy descendants before the launched process, since killing a shell at the
+	 * same time as the PAMGuard it started leaves PAMGuard orphaned part way through
+	 * shutting down, which can take it seconds rather than a fraction of one. The
+	 * launched process is then destroyed if it hasn't already gone by itself.
+	 * @param force use destroyForcibly()
+	 * @param millis max time to wait
+	 * @return true if they've all gone
+	 */
+	private boolean destroyAll(boolean force, long millis) {
+		long end = System.currentTimeMillis() + millis;
+		List<ProcessHandle> children = alive();
+		children.remove(root);
+		children.forEach(h -> destroy(h, force));
+		if (children.isEmpty() == false) {
+			waitForExit(children, millis / 2);
+		}
+		if (root != null && root.isAlive()) {
+			destroy(root, force);
+		}
+		return waitForExit(Math.max(0, end - System.currentTimeMillis()));
+	}
+
+	private void destroy(ProcessHandle h, boolean force) {
+		if (force) {
+			h.destroyForcibly();
+		}
+		else {
+			h.destroy();
+		}
+	}
+
+	/**
+	 * Find PAMGuard processes by the name they're given on the command line, which 
+	 * must also have this watchdog's control socket or UDP port, so that PAMGuards 
+	 * launched by other watchdogs on the same machine are left alone. On Windows the
+	 * command line is only available for processes this JVM started, so this finds
+	 * nothing there and only the exit command can be used.
+	 */
+	private void findByName() {
+		String tag = "-Dname=" + IdleFunction.LAUNCHNAME;
+		DogParams params = dogControl.getParams();
+		String socket = params.getControlSocket();
+		String instance;
+		if (socket != null && socket.isBlank() == false) {
+			instance = " -controlsocket " + socket;
+		}
+		else if (params.getUdpPort() > 0) {
+			instance = " -port " + params.getUdpPort();
+		}
+		else {
+			return;
+		}
+		ProcessHandle.allProcesses().filter(h -> h.info().commandLine()
+				.map(c -> c.contains(tag) && (c + " ").contains(instance + " ")).orElse(false))
+		.forEach(h -> {
+			commandLog.logItem("Found PAMGuard process pid %d", h.pid());
+			tracked.add(h);
+			h.descendants().forEach(tracked::add);
+		});
+	}
+
+	/**
+	 * @return tracked processes which are still alive
+	 */
+	private List<ProcessHandle> alive() {
+		List<ProcessHandle> alive = new ArrayList<>();
+		for (ProcessHandle h:tracked) {
+			if (h.isAlive()) {
+				alive.add(h);
+			}
+		}
+		return alive;
+	}
+
+	/**
+	 * Wait for all tracked processes to exit.
+	 * @param millis max time to wait
+	 * @return true if they've all gone
+	 */
+	private boolean waitForExit(long millis) {
+		return waitForExit(alive(), millis);
+	}
+
+	/**
+	 * Wait for a list of processes to exit.
+	 * @param alive processes
+	 * @param millis max time to wait
+	 * @return true if they've all gone
+	 */
+	private boolean waitForExit(List<ProcessHandle> alive, long millis) {
+		if (alive.isEmpty()) {
+			return true;
+		}
+		CompletableFuture<?>[] exits = new CompletableFuture<?>[alive.size()];
+		for (int i = 0; i < exits.length; i++) {
+			exits[i] = alive.get(i).onExit();
+		}
+		try {
+			CompletableFuture.allOf(exits).get(millis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException | ExecutionException e) {
+			return alive.stream().noneMatch(ProcessHandle::isAlive);
+		}
+	}
+
+	private long report(String stage, long start, boolean gone) {
+		long now = System.currentTimeMillis();
+		commandLog.logItem("Kill stage %s took %3.1fs, %s", stage, (double) (now - start) / 1000.,
+				gone ? "all processes ended" : "still running " + alive());
+		return now;
+	}
+
+}
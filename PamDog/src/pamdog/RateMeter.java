@@ -0,0 +1,68 @@
+package pamdog;
+
+/**
+ * Lines and bytes per second, measured over roughly one second intervals. Updated
+ * by one thread as it reads and read by any other. If nothing has been read for a
+ * couple of intervals the rates are zero.
+ */
+public class RateMeter {
+
+	private static final long INTERVAL = 1000000000L;
+
+	private long intervalStart = System.nanoTime();
+
+	private long intervalLines, intervalBytes;
+
+	private volatile long lastUpdate = intervalStart;
+
+	private volatile double linesPerSecond, bytesPerSecond;
+
+	private volatile double peakLinesPerSecond;
+
+	/**
+	 * Called by the reading thread after each read.
+	 * @param totalLines total lines so far
+	 * @param totalBytes total bytes so far
+	 */
+	public void update(long totalLines, long totalBytes) {
+		long now = System.nanoTime();
+		long elapsed = now - intervalStart;
+		if (elapsed < INTERVAL) {
+			return;
+		}
+		double secs = (double) elapsed / 1.e9;
+		linesPerSecond = (totalLines - intervalLines) / secs;
+		bytesPerSecond = (totalBytes - intervalBytes) / secs;
+		peakLinesPerSecond = Math.max(peakLinesPerSecond, linesPerSecond);
+		intervalStart = now;
+		intervalLines = totalLines;
+		intervalBytes = totalBytes;
+		lastUpdate = now;
+	}
+
+	private boolean isStale() {
+		return System.nanoTime() - lastUpdate > 2 * INTERVAL;
+	}
+
+	/**
+	 * @return lines per second over the last interval
+	 */
+	public double getLinesPerSecond() {
+		return isStale() ? 0 : linesPerSecond;
+	}
+
+	/**
+	 * @return bytes per second over the last interval
+	 */
+	public double getBytesPerSecond() {
+		return isStale() ? 0 : bytesPerSecond;
+	}
+
+	/**
+	 * @return highest lines per second over any interval
+	 */
+	public double getPeakLinesPerSecond() {
+		return peakLinesPerSecond;
+	}
+
+}
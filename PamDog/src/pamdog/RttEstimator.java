@@ -0,0 +1,137 @@
+package pamdog;
+
+/**
+ * Estimate the round trip time for commands to a PAMGuard instance and
+ * from it, how long it's worth waiting for a reply. Works the same way as
+ * TCP retransmission timeouts (RFC 6298): a smoothed RTT and RTT variance are
+ * updated from every reply and the timeout is the smoothed RTT plus four
+ * times the variance. Each time a command times out the timeout is doubled
+ * (up to a maximum) until a reply comes back, so a PAMGuard that is busy
+ * but still working gets longer to answer, rather than being killed. <p>
+ * Several commands are often in flight at once and all time out together when
+ * PAMGuard stalls, so backing off for each of them would multiply the timeout
+ * many times over for what is really one failure. Each back off starts a new
+ * epoch, and a command only backs off the timeout if it was sent in the current
+ * epoch, i.e. the timeout it was given hasn't been backed off already.
+ */
+public class RttEstimator {
+
+	/**
+	 * Gain for the smoothed RTT
+	 */
+	private static final double ALPHA = 1./8.;
+
+	/**
+	 * Gain for the RTT variance
+	 */
+	private static final double BETA = 1./4.;
+
+	private int initialTimeout, minTimeout, maxTimeout;
+
+	private boolean haveSample;
+
+	private double smoothedRtt;
+
+	private double rttVariance;
+
+	private int timeout;
+
+	private long epoch;
+
+	/**
+	 *
+	 * @param initialTimeout timeout to use until there are some replies, millis
+	 * @param minTimeout minimum timeout, millis
+	 * @param maxTimeout maximum timeout, millis
+	 */
+	public RttEstimator(int initialTimeout, int minTimeout, int maxTimeout) {
+		this.initialTimeout = initialTimeout;
+		this.minTimeout = minTimeout;
+		this.maxTimeout = maxTimeout;
+		reset();
+	}
+
+	/**
+	 * Clear all history, e.g. when a new PAMGuard instance is launched.
+	 */
+	public synchronized void reset() {
+		haveSample = false;
+		smoothedRtt = 0;
+		rttVariance = 0;
+		timeout = initialTimeout;
+		// anything still in flight was timed against the old instance.
+		epoch++;
+	}
+
+	/**
+	 * Add a measured round trip time. Don't call this for replies
+	 * that came back after the command had timed out.
+	 * @param rttMillis round trip time in milliseconds
+	 */
+	public synchronized void addSample(double rttMillis) {
+		if (haveSample == false) {
+			smoothedRtt = rttMillis;
+			rttVariance = rttMillis / 2.;
+			haveSample = true;
+		}
+		else {
+			rttVariance = (1.-BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rttMillis);
+			smoothedRtt = (1.-ALPHA) * smoothedRtt + ALPHA * rttMillis;
+		}
+		timeout = clamp((int) Math.ceil(smoothedRtt + 4. * rttVariance));
+	}
+
+	/**
+	 * @return the current timeout epoch. Get this when a command is sent
+	 * and pass it to timedOut(long) if the command times out.
+	 */
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Called when a command has timed out. Backs off the timeout, unless
+	 * it's already been backed off since the command was sent.
+	 * @param sentEpoch epoch when the command was sent
+	 * @return true if the timeout was backed off
+	 */
+	public synchronized boolean timedOut(long sentEpoch) {
+		if (sentEpoch != epoch) {
+			return false;
+		}
+		timeout = clamp(timeout * 2);
+		epoch++;
+		return true;
+	}
+
+	private int clamp(int millis) {
+		return Math.max(minTimeout, Math.min(maxTimeout, millis));
+	}
+
+	/**
+	 * @return how long to wait for a reply in milliseconds
+	 */
+	public synchronized int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the smoothed round trip time in milliseconds
+	 */
+	public synchronized double getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return the round trip time variance in milliseconds
+	 */
+	public synchronized double getRttVariance() {
+		return rttVariance;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("timeout %dms (srtt %3.1fms, rttvar %3.1fms)", timeout, smoothedRtt, rttVariance);
+	}
+
+}
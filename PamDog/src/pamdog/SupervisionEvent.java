@@ -0,0 +1,15 @@
+package pamdog;
+
+/**
+ * Things the watchdog does which need rate limiting.
+ */
+public enum SupervisionEvent {
+	/**
+	 * PAMGuard launched, or an attempt to launch it failed.
+	 */
+	LAUNCH,
+	/**
+	 * PAMGuard told to start, or it failed to start.
+	 */
+	START;
+}
@@ -0,0 +1,39 @@
+package pamdog;
+
+/**
+ * States of the supervision state machine in DogSupervisor
+ */
+public enum SupervisorState {
+	/**
+	 * Watchdog not activated, or still in the wait after the dog started.
+	 */
+	INACTIVE,
+	/**
+	 * PAMGuard has been launched, but hasn't replied yet.
+	 */
+	LAUNCHING,
+	/**
+	 * PAMGuard is replying but still initialising.
+	 */
+	INITIALISING,
+	/**
+	 * PAMGuard is ready, but not running.
+	 */
+	IDLE,
+	/**
+	 * PAMGuard is running.
+	 */
+	RUNNING,
+	/**
+	 * PAMGuard reports that it's stalled.
+	 */
+	STALLED,
+	/**
+	 * PAMGuard is being killed.
+	 */
+	KILLING,
+	/**
+	 * The PC is being restarted.
+	 */
+	REBOOTING;
+}
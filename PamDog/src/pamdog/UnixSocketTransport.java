@@ -0,0 +1,401 @@
+package pamdog;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Control commands to PAMGuard over a Unix domain stream socket, as an alternative
+ * to loopback UDP for something listening on a socket file rather than a port,
+ * so there are no ports to collide when several instances share a machine. <p>
+ * Each command is sent as a line of text and each reply comes back as a line of text.
+ * The stream is reliable and ordered, so replies are matched to commands in the
+ * order they were sent over a single connection, and a reply to a command which
+ * has timed out is recognised and thrown away rather than being mistaken for the
+ * next one. PAMGuard's replies start with the command they answer, so a timed out
+ * command whose reply doesn't start with it is taken as never getting one and dropped,
+ * as is one which is so late that it's given up on. Only commands which always get a
+ * reply should be sent, see allowsUnansweredCommands().
+ * The connection is made when the first command is sent and remade
+ * after it drops. <p>
+ * Commands are written by a writer thread rather than whoever sends them, so sending
+ * never blocks, even from a callback on the reader thread, and a PAMGuard which has
+ * stopped reading can't hold up timeouts or anything else. A write which is still
+ * stuck when it's command times out drops the connection, and commands which time
+ * out before the writer gets to them aren't sent at all. Round trip times are from
+ * when the command is written, so time spent queued for the writer isn't included.
+ */
+public class UnixSocketTransport implements DogTransport {
+
+	/**
+	 * Max length of a reply line. Anything longer is cut short.
+	 */
+	private static final int MAXREPLYSIZE = 4096;
+
+	/**
+	 * If this many commands are waiting for replies PAMGuard isn't reading them,
+	 * so the connection is dropped and remade rather than filling the socket buffer.
+	 */
+	private static final int MAXPENDING = 64;
+
+	/**
+	 * How long a command which has timed out keeps it's place in the queue waiting
+	 * for a late reply. After that it's assumed no reply is coming, and it's dropped
+	 * from the head of the queue so later replies line up with their commands again.
+	 */
+	private static final int LATEREPLYWAIT = 5000;
+
+	private Path socketPath;
+
+	private SocketChannel channel;
+
+	private volatile String lastError;
+
+	private ConcurrentLinkedQueue<PendingCommand> pendingCommands = new ConcurrentLinkedQueue<>();
+
+	private AtomicLong lateReplies = new AtomicLong();
+
+	private RttEstimator rttEstimator = new RttEstimator(1000, 500, 10000);
+
+	private PhiAccrualDetector livenessDetector = new PhiAccrualDetector(100, 500, 3000, 1000);
+
+	private volatile boolean closed;
+
+	/**
+	 * Writes commands one at a time, so they go out in the order they're sent.
+	 */
+	private ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "PamDog control socket writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @param socketPath path of the socket file PAMGuard is listening on
+	 */
+	public UnixSocketTransport(Path socketPath) {
+		this.socketPath = socketPath;
+	}
+
+	@Override
+	public String sendCommand(String command, int timeout) {
+		CompletableFuture<String> reply = sendCommandAsync(command, timeout);
+		try {
+			String received = reply.get();
+			lastError = null;
+			return received;
+		} catch (InterruptedException e) {
+			lastError = e.getMessage();
+			return null;
+		} catch (ExecutionException e) {
+			lastError = e.getCause().getMessage();
+			return null;
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> sendCommandAsync(String command, int timeout) {
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		PendingCommand pending = new PendingCommand(command, reply);
+		Executor delayed = CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS);
+		delayed.execute(() -> pending.timeOut());
+		try {
+			writer.execute(() -> write(pending));
+		}
+		catch (RejectedExecutionException e) {
+			lastError = "Control socket closed";
+			reply.completeExceptionally(new IOException(lastError));
+		}
+		return reply;
+	}
+
+	/**
+	 * Send a command, connecting first if need be. Only called on the writer thread. 
+	 * @param pending command to send
+	 */
+	private void write(PendingCommand pending) {
+		if (pending.reply.isDone()) {
+			// timed out waiting for the writer, so too late to send.
+			return;
+		}
+		ByteBuffer bytes = ByteBuffer.wrap((pending.command + "\n").getBytes(StandardCharsets.UTF_8));
+		CompletableFuture<String> reply = pending.reply;
+		SocketChannel ch = null;
+		try {
+			synchronized (this) {
+				if (closed) {
+					throw new IOException("Control socket closed");
+				}
+				if (pendingCommands.size() >= MAXPENDING) {
+					disconnect(new IOException("Too many commands waiting for PAMGuard"));
+				}
+				ch = checkConnection();
+				// queue before sending, so that a quick reply finds it.
+				pending.sendNanos = System.nanoTime();
+				pendingCommands.add(pending);
+			}
+			pending.writingTo = ch;
+			while (bytes.hasRemaining()) {
+				ch.write(bytes);
+			}
+		} catch (IOException e) {
+			lastError = e.getMessage();
+			pendingCommands.remove(pending);
+			if (ch != null) {
+				disconnect(ch, e);
+			}
+			reply.completeExceptionally(e);
+		}
+		finally {
+			pending.writingTo = null;
+		}
+	}
+
+	/**
+	 * Connect to the socket if not already connected and start the thread
+	 * reading replies.
+	 * @return connected channel
+	 * @throws IOException if the socket isn't there or nothing is listening on it
+	 */
+	private SocketChannel checkConnection() throws IOException {
+		if (channel != null) {
+			return channel;
+		}
+		SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			ch.connect(UnixDomainSocketAddress.of(socketPath));
+		}
+		catch (IOException e) {
+			ch.close();
+			throw new IOException("Unable to connect to " + socketPath + ": " + e.getMessage());
+		}
+		channel = ch;
+		Thread reader = new Thread(new ReplyReader(ch), "PamDog control socket reader");
+		reader.setDaemon(true);
+		reader.start();
+		return ch;
+	}
+
+	/**
+	 * Close the connection if it's still the given one and fail everything
+	 * still waiting for a reply on it.
+	 * @param ch channel
+	 * @param e reason
+	 */
+	private synchronized void disconnect(SocketChannel ch, IOException e) {
+		if (channel == ch) {
+			disconnect(e);
+		}
+	}
+
+	private synchronized void disconnect(IOException e) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e1) {
+			}
+			channel = null;
+		}
+		PendingCommand pending;
+		while ((pending = pendingCommands.poll()) != null) {
+			pending.reply.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Reads reply lines and hands each to the oldest command waiting for one.
+	 */
+	private class ReplyReader implements Runnable {
+
+		private SocketChannel ch;
+
+		private ByteBuffer readBuffer = ByteBuffer.allocateDirect(MAXREPLYSIZE);
+
+		private byte[] lineBytes = new byte[MAXREPLYSIZE];
+
+		private int lineLength;
+
+		private ReplyReader(SocketChannel ch) {
+			this.ch = ch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (ch.read(readBuffer) >= 0) {
+					readBuffer.flip();
+					while (readBuffer.hasRemaining()) {
+						byte b = readBuffer.get();
+						if (b == '\n') {
+							replyLine(new String(lineBytes, 0, lineLength, StandardCharsets.UTF_8));
+							lineLength = 0;
+						}
+						else if (b != '\r' && lineLength < MAXREPLYSIZE) {
+							lineBytes[lineLength++] = b;
+						}
+					}
+					readBuffer.clear();
+				}
+				disconnect(ch, new IOException("Control socket closed by PAMGuard"));
+			}
+			catch (IOException e) {
+				disconnect(ch, e);
+			}
+		}
+
+		private void replyLine(String line) {
+			dropAbandoned(line);
+			PendingCommand pending = pendingCommands.poll();
+			if (pending == null) {
+				// nothing asked for it.
+				lateReplies.incrementAndGet();
+				return;
+			}
+			double rtt = (System.nanoTime() - pending.sendNanos) / 1.e6;
+			if (pending.reply.complete(line)) {
+				rttEstimator.addSample(rtt);
+			}
+			else {
+				// timed out, but it's still it's reply so the next one lines up.
+				lateReplies.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Drop timed out commands from the head of the queue whose replies aren't
+		 * coming, either because the line which has arrived isn't a reply to them
+		 * or because they timed out too long ago, so that they don't take the replies
+		 * to later commands. A command which hasn't timed out keeps it's place.
+		 * @param line reply line which has arrived
+		 */
+		private void dropAbandoned(String line) {
+			long now = System.currentTimeMillis();
+			PendingCommand head;
+			while ((head = pendingCommands.peek()) != null && head.lateDeadline > 0 
+					&& (now > head.lateDeadline || head.answeredBy(line) == false)) {
+				pendingCommands.remove(head);
+			}
+		}
+	}
+
+	/**
+	 * A command which has been sent and is waiting for a reply.
+	 */
+	private class PendingCommand {
+
+		private String command;
+
+		private CompletableFuture<String> reply;
+
+		/**
+		 * Set when the command is written, by the writer thread before the
+		 * command is queued for a reply.
+		 */
+		private long sendNanos;
+
+		private long sendEpoch = rttEstimator.getEpoch();
+
+		/**
+		 * Channel the command is being written to, null once the write is done.
+		 */
+		private volatile SocketChannel writingTo;
+
+		/**
+		 * Set when the command times out, after which no reply is expected.
+		 */
+		private volatile long lateDeadline;
+
+		private PendingCommand(String command, CompletableFuture<String> reply) {
+			this.command = command;
+			this.reply = reply;
+		}
+
+		/**
+		 * @param line reply line
+		 * @return true if the line starts with the command, as PAMGuard's replies do.
+		 */
+		private boolean answeredBy(String line) {
+			return line.regionMatches(true, 0, command, 0, command.length());
+		}
+
+		private void timeOut() {
+			/*
+			 * Stays in the queue so that when it's reply does turn up it's
+			 * recognised as late and doesn't get given to a later command.
+			 */
+			if (reply.completeExceptionally(new SocketTimeoutException("Receive timed out"))) {
+				lateDeadline = System.currentTimeMillis() + LATEREPLYWAIT;
+				rttEstimator.timedOut(sendEpoch);
+				lastError = "Receive timed out";
+			}
+			SocketChannel ch = writingTo;
+			if (ch != null) {
+				// PAMGuard has stopped reading, so closing is the only way to free the writer.
+				disconnect(ch, new SocketTimeoutException("Write timed out"));
+			}
+		}
+	}
+
+	@Override
+	public int getTimeout() {
+		return rttEstimator.getTimeout();
+	}
+
+	@Override
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+
+	@Override
+	public PhiAccrualDetector getLivenessDetector() {
+		return livenessDetector;
+	}
+
+	/**
+	 * Replies are matched to commands by order, so a command PAMGuard doesn't 
+	 * answer holds up all the replies after it until it's dropped. 
+	 */
+	@Override
+	public boolean allowsUnansweredCommands() {
+		return false;
+	}
+
+	@Override
+	public long getLateReplyCount() {
+		return lateReplies.get();
+	}
+
+	@Override
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return path of the socket file
+	 */
+	public Path getSocketPath() {
+		return socketPath;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		writer.shutdown();
+		disconnect(new IOException("Control socket closed"));
+	}
+
+}
@@ -0,0 +1,91 @@
+package pamdog;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks on the RTT estimator's timeout back off. Doesn't need a test framework,
+ * run it with java -ea and it exits with a non zero status if a check fails.
+ */
+public class RttEstimatorTest {
+
+	public static void main(String[] args) throws InterruptedException {
+		concurrentTimeouts();
+		laterTimeouts();
+		resetStartsNewEpoch();
+		System.out.println("RttEstimatorTest passed");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.err.println("RttEstimatorTest failed: " + what);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Lots of commands sent together all time out together on different threads,
+	 * which should only back off the timeout once.
+	 */
+	private static void concurrentTimeouts() throws InterruptedException {
+		RttEstimator rtt = new RttEstimator(1000, 500, 60000);
+		int nCommands = 16;
+		long[] epochs = new long[nCommands];
+		for (int i = 0; i < nCommands; i++) {
+			epochs[i] = rtt.getEpoch();
+		}
+		CountDownLatch go = new CountDownLatch(1);
+		AtomicInteger backedOff = new AtomicInteger();
+		Thread[] threads = new Thread[nCommands];
+		for (int i = 0; i < nCommands; i++) {
+			long epoch = epochs[i];
+			threads[i] = new Thread(() -> {
+				try {
+					go.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (rtt.timedOut(epoch)) {
+					backedOff.incrementAndGet();
+				}
+			});
+			threads[i].start();
+		}
+		go.countDown();
+		for (Thread thread:threads) {
+			thread.join();
+		}
+		check(backedOff.get() == 1, "concurrent timeouts backed off " + backedOff.get() + " times");
+		check(rtt.getTimeout() == 2000, "timeout after concurrent timeouts " + rtt.getTimeout());
+	}
+
+	/**
+	 * A command sent after a back off which also times out should back off again,
+	 * up to the maximum.
+	 */
+	private static void laterTimeouts() {
+		RttEstimator rtt = new RttEstimator(1000, 500, 5000);
+		check(rtt.timedOut(rtt.getEpoch()), "first timeout didn't back off");
+		long stale = rtt.getEpoch() - 1;
+		check(!rtt.timedOut(stale), "timeout from before the back off backed off again");
+		check(rtt.timedOut(rtt.getEpoch()), "second timeout didn't back off");
+		check(rtt.getTimeout() == 4000, "timeout after two back offs " + rtt.getTimeout());
+		rtt.timedOut(rtt.getEpoch());
+		check(rtt.getTimeout() == 5000, "timeout not clamped " + rtt.getTimeout());
+		rtt.addSample(100);
+		check(rtt.getTimeout() == 500, "timeout after a reply " + rtt.getTimeout());
+	}
+
+	/**
+	 * Commands to the previous instance which time out after a reset shouldn't
+	 * back off the new instance's timeout.
+	 */
+	private static void resetStartsNewEpoch() {
+		RttEstimator rtt = new RttEstimator(1000, 500, 10000);
+		long before = rtt.getEpoch();
+		rtt.reset();
+		check(!rtt.timedOut(before), "timeout from before the reset backed off");
+		check(rtt.getTimeout() == 1000, "timeout after reset " + rtt.getTimeout());
+	}
+
+}